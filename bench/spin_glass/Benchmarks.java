@@ -0,0 +1,569 @@
+package spin_glass;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+
+/** Benchmark harness for the lattice, sampling and MPF hot paths.
+ *  Each benchmark is warmed up, then timed over several fixed-length
+ *  iterations, and reports its throughput in its own unit (spin flips,
+ *  samples or gradient evaluations per second) together with the bytes
+ *  allocated per unit, read from the thread allocation counters.
+ *
+ *  Usage: java spin_glass.Benchmarks [-quick] [-save FILE]
+ *             [-check FILE] [-tolerance FRACTION] [FILTER]
+ *  FILTER is a regular expression found in the names of the benchmarks
+ *  to run. -save records the results as a baseline, each with the
+ *  spread (relative standard deviation) of its timed iterations. -check
+ *  compares against a saved baseline and exits with status 1 if any
+ *  benchmark lost more of its throughput than its noise allows: three
+ *  times the combined spread of the baseline and the new run, or the
+ *  tolerance (default 0.1) if that is larger. A fixed tolerance alone
+ *  is within the run-to-run noise of some benchmarks, so it would
+ *  report regressions that are not there.
+ *  @author Andrew Berger */
+public class Benchmarks {
+
+    public static void main(String[] args) throws IOException {
+        String filter = "";
+        String save = null;
+        String check = null;
+        double tolerance = .1;
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("-quick")) {
+                _warmupMillis = 200;
+                _iterationMillis = 200;
+                _iterations = 3;
+            } else if (args[k].equals("-save")) {
+                save = args[++k];
+            } else if (args[k].equals("-check")) {
+                check = args[++k];
+            } else if (args[k].equals("-tolerance")) {
+                tolerance = Double.parseDouble(args[++k]);
+            } else {
+                filter = args[k];
+            }
+        }
+        Map<String, double[]> results = new HashMap<String, double[]>();
+        System.out.printf("%-44s %14s %10s %12s%n",
+                          "benchmark", "units/s", "+-%", "B/unit");
+        for (Benchmark b : benchmarks()) {
+            if (Pattern.compile(filter).matcher(b.name()).find()) {
+                results.put(b.name(), run(b));
+            }
+        }
+        if (save != null) {
+            PrintWriter out = new PrintWriter(save);
+            for (Map.Entry<String, double[]> e : results.entrySet()) {
+                out.println(e.getKey() + " " + e.getValue()[0] + " "
+                            + e.getValue()[1]);
+            }
+            out.close();
+        }
+        if (check != null && !check(check, results, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    /** A timed operation. Each call to run() does some amount of work
+     *  and returns how many units of it were done. */
+    abstract static class Benchmark {
+
+        Benchmark(String name, String unit) {
+            _name = name;
+            _unit = unit;
+        }
+
+        /** Returns my name, with my parameters. */
+        String name() {
+            return _name;
+        }
+
+        /** Returns the unit my throughput is counted in. */
+        String unit() {
+            return _unit;
+        }
+
+        /** Builds whatever I operate on. Not timed. */
+        abstract void setUp();
+
+        /** Does a batch of work and returns the units done. */
+        abstract long run();
+
+        private final String _name;
+        private final String _unit;
+    }
+
+    /** Returns every benchmark, over their parameter grids. */
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> all = new ArrayList<Benchmark>();
+        for (double temp : TEMPERATURES) {
+            for (int side : GRID_SIDES) {
+                all.add(spinUpdates(side * side, true, temp));
+            }
+            for (int size : DENSE_SIZES) {
+                all.add(spinUpdates(size, false, temp));
+            }
+            all.add(energyDiffs(GRID_SIDES[1] * GRID_SIDES[1], true, temp));
+            all.add(energyDiffs(DENSE_SIZES[0], false, temp));
+            for (int side : GRID_SIDES) {
+                all.add(parallelSweeps(side, temp));
+                all.add(multiSpinSweeps(side, temp));
+                all.add(sampling(side, temp, Sampling.Algorithm.SWENDSEN_WANG));
+                all.add(sampling(side, temp, Sampling.Algorithm.WOLFF));
+            }
+        }
+        for (int side : GRID_SIDES) {
+            all.add(converge(side));
+            all.add(descend(side));
+        }
+        for (int size : DENSE_SIZES) {
+            all.add(rbmGibbs(size));
+            all.add(rbmChains(size, CHAINS));
+        }
+        for (int size : MPF_SIZES) {
+            all.add(mpfGradient(size, false, OBSERVATIONS, null));
+            all.add(mpfGradient(size, false, MANY_OBSERVATIONS, null));
+        }
+        int mpfSide = (int) Math.sqrt(MPF_SIZES[1]);
+        all.add(mpfGradient(mpfSide * mpfSide, true, MANY_OBSERVATIONS,
+                            null));
+        all.add(mpfGradient(MPF_SIZES[1], false, MANY_OBSERVATIONS,
+                            ForkJoinPool.commonPool()));
+        all.add(enumeration(ENUMERATED_SIDE));
+        return all;
+    }
+
+    /** Heat-bath or zero temperature single spin updates. */
+    static Benchmark spinUpdates(final int size, final boolean sparse,
+                                 final double temp) {
+        return new Benchmark(String.format("updateSpin %s N=%d T=%.2f",
+                                           sparse ? "grid" : "dense",
+                                           size, temp), "flips") {
+            @Override
+            void setUp() {
+                _glass = glass(size, sparse, temp);
+                _rand = new FastRandom(1);
+            }
+
+            @Override
+            long run() {
+                for (int k = 0; k < BATCH; k++) {
+                    _glass.updateSpin(_rand.nextInt(size));
+                }
+                return BATCH;
+            }
+
+            private InteractingLattice _glass;
+            private FastRandom _rand;
+        };
+    }
+
+    /** Energy differences of single spins. */
+    static Benchmark energyDiffs(final int size, final boolean sparse,
+                                 final double temp) {
+        return new Benchmark(String.format("energyDiff %s N=%d T=%.2f",
+                                           sparse ? "grid" : "dense",
+                                           size, temp), "evals") {
+            @Override
+            void setUp() {
+                _glass = glass(size, sparse, temp);
+            }
+
+            @Override
+            long run() {
+                double sum = 0;
+                for (int k = 0; k < BATCH; k++) {
+                    sum += _glass.energyDiff(k % size);
+                }
+                _sink += sum;
+                return BATCH;
+            }
+
+            private InteractingLattice _glass;
+        };
+    }
+
+    /** Full sweeps in parallel sweep mode, counted in spin updates. */
+    static Benchmark parallelSweeps(final int side, final double temp) {
+        return new Benchmark(String.format("sweep parallel grid N=%d T=%.2f",
+                                           side * side, temp), "flips") {
+            @Override
+            void setUp() {
+                _glass = glass(side * side, true, temp);
+                _glass.setParallelSweeps(ForkJoinPool.commonPool());
+            }
+
+            @Override
+            long run() {
+                _glass.sweep();
+                return _glass.latticeSize();
+            }
+
+            private InteractingLattice _glass;
+        };
+    }
+
+    /** Full sweeps of 64 multi-spin coded replicas, counted in spin
+     *  updates over all replicas. */
+    static Benchmark multiSpinSweeps(final int side, final double temp) {
+        return new Benchmark(String.format("sweep multispin grid N=%d T=%.2f",
+                                           side * side, temp), "flips") {
+            @Override
+            void setUp() {
+                _replicas = new MultiSpinLattice(glass(side * side, true,
+                                                       temp));
+                _replicas.randomize();
+            }
+
+            @Override
+            long run() {
+                _replicas.sweep();
+                return (long) MultiSpinLattice.REPLICAS
+                    * _replicas.latticeSize();
+            }
+
+            private MultiSpinLattice _replicas;
+        };
+    }
+
+    /** Full anneals of a ferromagnetic grid from T = 3. */
+    static Benchmark converge(final int side) {
+        return new Benchmark(String.format("converge grid N=%d",
+                                           side * side), "anneals") {
+            @Override
+            void setUp() {
+                _glass = glass(side * side, true, 3);
+                _glass.setParallelSweeps(ForkJoinPool.commonPool());
+                _glass.setSchedule(AnnealingSchedule.geometric(.8, .05), 1);
+            }
+
+            @Override
+            long run() {
+                _glass.converge();
+                return 1;
+            }
+
+            private InteractingLattice _glass;
+        };
+    }
+
+    /** Serial zero temperature descents from a random state. */
+    static Benchmark descend(final int side) {
+        return new Benchmark(String.format("descend grid N=%d",
+                                           side * side), "descents") {
+            @Override
+            void setUp() {
+                _glass = glass(side * side, true, 0);
+                _start = _glass.getState();
+            }
+
+            @Override
+            long run() {
+                _glass.setSpins(_start);
+                _glass.converge();
+                return 1;
+            }
+
+            private InteractingLattice _glass;
+            private State _start;
+        };
+    }
+
+    /** Whole-layer Gibbs steps, up and back down, of a square RBM. */
+    static Benchmark rbmGibbs(final int size) {
+        return new Benchmark(String.format("rbm gibbs N=%dx%d", size, size),
+                             "steps") {
+            @Override
+            void setUp() {
+                FastRandom rand = new FastRandom(size);
+                InteractingLattice visible = new InteractingLattice(size);
+                _hidden = new NonInteractingLattice(size, visible);
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        _hidden._weights.set(i, j, rand.nextBoolean() ? 1 : -1);
+                    }
+                    visible.setSpin(i, rand.nextBoolean());
+                }
+                _hidden.setTemperature(size / 8.0);
+            }
+
+            @Override
+            long run() {
+                for (int k = 0; k < GIBBS_STEPS; k++) {
+                    _hidden.converge();
+                    _hidden.reconstruct();
+                }
+                return GIBBS_STEPS;
+            }
+
+            private NonInteractingLattice _hidden;
+        };
+    }
+
+    /** Gibbs steps of a batch of persistent chains over a square RBM,
+     *  counted per chain. */
+    static Benchmark rbmChains(final int size, final int chains) {
+        return new Benchmark(String.format("rbm chains N=%dx%d K=%d",
+                                           size, size, chains), "steps") {
+            @Override
+            void setUp() {
+                FastRandom rand = new FastRandom(size);
+                InteractingLattice visible = new InteractingLattice(size);
+                NonInteractingLattice hidden =
+                    new NonInteractingLattice(size, visible);
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        hidden._weights.set(i, j, rand.nextBoolean() ? 1 : -1);
+                    }
+                }
+                hidden.setTemperature(size / 8.0);
+                _chains = new PersistentChains(hidden, chains);
+            }
+
+            @Override
+            long run() {
+                _chains.step(GIBBS_STEPS);
+                return (long) GIBBS_STEPS * chains;
+            }
+
+            private PersistentChains _chains;
+        };
+    }
+
+    /** Cluster sampling steps. */
+    static Benchmark sampling(final int side, final double temp,
+                              final Sampling.Algorithm algorithm) {
+        return new Benchmark(String.format("sample %s N=%d T=%.2f",
+                                           algorithm, side * side, temp),
+                             "samples") {
+            @Override
+            void setUp() {
+                _sampler = new Sampling(glass(side * side, true, temp));
+                _sampler.setAlgorithm(algorithm);
+                _initial = new State(new BitSet(), side * side);
+            }
+
+            @Override
+            long run() {
+                _sampler.sample(SAMPLES, _initial, NO_SINK);
+                return SAMPLES;
+            }
+
+            private Sampling _sampler;
+            private State _initial;
+        };
+    }
+
+    /** MPF gradient evaluations over COUNT random observations of a
+     *  lattice of SIZE spins, on a square grid if SPARSE and otherwise
+     *  all to all, computed on POOL if it is not null. */
+    static Benchmark mpfGradient(final int size, final boolean sparse,
+                                 final int count, final ForkJoinPool pool) {
+        return new Benchmark(String.format("mpf gradient %s N=%d obs=%d%s",
+                                           sparse ? "grid" : "dense", size,
+                                           count,
+                                           pool == null ? "" : " pool"),
+                             "gradients") {
+            @Override
+            void setUp() {
+                FastRandom rand = new FastRandom(3);
+                List<State> observations = new ArrayList<State>();
+                for (int k = 0; k < count; k++) {
+                    BitSet bits = new BitSet(size);
+                    for (int i = 0; i < size; i++) {
+                        bits.set(i, rand.nextBoolean());
+                    }
+                    observations.add(new State(bits, size));
+                }
+                _mpf = new MPF(observations, glass(size, sparse, 1));
+                _mpf.setPool(pool);
+            }
+
+            @Override
+            long run() {
+                _sink += _mpf.KLGradient()[0][1];
+                return 1;
+            }
+
+            private MPF _mpf;
+        };
+    }
+
+    /** Exact enumerations of a periodic SIDE x SIDE grid, counted in
+     *  states visited. */
+    static Benchmark enumeration(final int side) {
+        return new Benchmark(String.format("enumerate grid N=%d",
+                                           side * side), "states") {
+            @Override
+            void setUp() {
+                _enumerator =
+                    new ExactEnumerator(glass(side * side, true, 1));
+                _enumerator.setPool(ForkJoinPool.commonPool());
+            }
+
+            @Override
+            long run() {
+                _enumerator.enumerate();
+                _sink += _enumerator.logPartitionFunction();
+                return 1L << (side * side);
+            }
+
+            private ExactEnumerator _enumerator;
+        };
+    }
+
+    /** Returns a lattice of SIZE spins at TEMP with random +-1 couplings,
+     *  either on a periodic square grid (SPARSE) or all to all, and
+     *  random spins. */
+    static InteractingLattice glass(int size, boolean sparse, double temp) {
+        FastRandom rand = new FastRandom(size);
+        InteractingLattice glass;
+        if (sparse) {
+            int side = (int) Math.sqrt(size);
+            Topology grid = Topology.grid(side, side, true);
+            glass = new InteractingLattice(grid);
+            for (int i = 0; i < size; i++) {
+                for (int p = 0; p < grid.degree(i); p++) {
+                    int j = grid.neighbor(i, p);
+                    if (j > i) {
+                        glass._weights.set(i, j, rand.nextBoolean() ? 1 : -1);
+                    }
+                }
+            }
+        } else {
+            glass = new InteractingLattice(size);
+            for (int i = 0; i < size; i++) {
+                for (int j = i + 1; j < size; j++) {
+                    glass._weights.set(i, j, rand.nextBoolean() ? 1 : -1);
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            glass.setSpin(i, rand.nextBoolean());
+        }
+        glass.setTemperature(temp);
+        glass.setRandom(new FastRandom(2));
+        return glass;
+    }
+
+    /** Warms up and times B, prints its line and returns its mean
+     *  throughput and the spread of its iterations, as {mean, relative
+     *  standard deviation}. */
+    static double[] run(Benchmark b) {
+        b.setUp();
+        long end = System.nanoTime() + _warmupMillis * 1000000L;
+        while (System.nanoTime() < end) {
+            b.run();
+        }
+        double[] rates = new double[_iterations];
+        long units = 0;
+        long bytes = -allocated();
+        for (int it = 0; it < _iterations; it++) {
+            long start = System.nanoTime();
+            end = start + _iterationMillis * 1000000L;
+            long done = 0;
+            long now;
+            do {
+                done += b.run();
+                now = System.nanoTime();
+            } while (now < end);
+            rates[it] = done / ((now - start) / 1e9);
+            units += done;
+        }
+        bytes += allocated();
+        double mean = 0;
+        for (double r : rates) {
+            mean += r / _iterations;
+        }
+        double var = 0;
+        for (double r : rates) {
+            var += (r - mean) * (r - mean) / Math.max(1, _iterations - 1);
+        }
+        double spread = Math.sqrt(var) / mean;
+        System.out.printf("%-44s %14.1f %9.1f%% %12.2f  %s/s%n", b.name(),
+                          mean, 100 * spread, (double) bytes / units,
+                          b.unit());
+        return new double[] {mean, spread};
+    }
+
+    /** Returns the bytes allocated so far by this thread, or 0 if the
+     *  JVM cannot tell. */
+    static long allocated() {
+        java.lang.management.ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /** Compares RESULTS with the baseline saved in FILE. Prints and
+     *  returns false if any lost more of its throughput than three times
+     *  the combined spread of the two, or than TOLERANCE if that is
+     *  larger. */
+    static boolean check(String file, Map<String, double[]> results,
+                         double tolerance) throws IOException {
+        boolean ok = true;
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        for (String line = in.readLine(); line != null;
+             line = in.readLine()) {
+            int split = line.lastIndexOf(' ');
+            double baseSpread = Double.parseDouble(line.substring(split + 1));
+            line = line.substring(0, split);
+            split = line.lastIndexOf(' ');
+            String name = line.substring(0, split);
+            double baseline = Double.parseDouble(line.substring(split + 1));
+            double[] now = results.get(name);
+            if (now == null) {
+                continue;
+            }
+            double allowed = Math.max(tolerance,
+                                      3 * Math.hypot(baseSpread, now[1]));
+            if (now[0] < (1 - allowed) * baseline) {
+                System.out.printf("REGRESSION %s: %.1f -> %.1f"
+                                  + " (allowed %.0f%%)%n",
+                                  name, baseline, now[0], 100 * allowed);
+                ok = false;
+            }
+        }
+        in.close();
+        return ok;
+    }
+
+    /** A sink that drops every sample. */
+    static final SampleSink NO_SINK = new SampleSink() {
+        @Override
+        public void accept(Lattice glass, long step) {
+        }
+    };
+
+    static final double[] TEMPERATURES = {.5, 2.27, 5};
+    static final int[] GRID_SIDES = {32, 128, 512};
+    static final int[] DENSE_SIZES = {256, 1024};
+    static final int[] MPF_SIZES = {16, 400};
+    static final int BATCH = 10000;
+    static final int SAMPLES = 10;
+    static final int GIBBS_STEPS = 10;
+    static final int CHAINS = 64;
+    static final int OBSERVATIONS = 32;
+    /** Enough observations to cut into many shards. */
+    static final int MANY_OBSERVATIONS = 4096;
+    static final int ENUMERATED_SIDE = 4;
+
+    static long _warmupMillis = 1000;
+    static long _iterationMillis = 1000;
+    static int _iterations = 5;
+    /** Keeps results alive so the JIT cannot drop the work. */
+    static volatile double _sink;
+}
@@ -0,0 +1,68 @@
+package spin_glass;
+
+/** A rule for lowering the temperature during simulated annealing.
+ *  Each step of a schedule lasts a fixed number of full sweeps; annealing
+ *  ends at the first step whose temperature is not positive.
+ *  Any custom rule may be supplied as a lambda.
+ *  @author Andrew Berger */
+public interface AnnealingSchedule {
+
+    /** Returns the temperature for step STEP (STEP >= 1) of an anneal
+     *  started from INITIAL, or a non-positive value to stop. */
+    double temperature(int step, double initial);
+
+    /** Returns a schedule lowering the temperature by DECREMENT > 0
+     *  every step. */
+    static AnnealingSchedule linear(final double decrement) {
+        if (!(decrement > 0)) {
+            throw new StateException("decrement " + decrement
+                                     + " is not positive");
+        }
+        return new AnnealingSchedule() {
+            @Override
+            public double temperature(int step, double initial) {
+                return initial - step * decrement;
+            }
+        };
+    }
+
+    /** Returns a schedule multiplying the temperature by RATIO, in (0, 1),
+     *  every step, and stopping once it falls below FLOOR > 0. */
+    static AnnealingSchedule geometric(final double ratio,
+                                       final double floor) {
+        if (!(ratio > 0 && ratio < 1)) {
+            throw new StateException("ratio " + ratio + " is not in (0, 1)");
+        }
+        if (!(floor > 0)) {
+            throw new StateException("floor " + floor + " is not positive");
+        }
+        return new AnnealingSchedule() {
+            @Override
+            public double temperature(int step, double initial) {
+                double temp = initial * Math.pow(ratio, step);
+                return temp < floor ? 0 : temp;
+            }
+        };
+    }
+
+    /** Returns a schedule decaying the temperature as
+     *  initial * exp(-step / TIMECONSTANT), TIMECONSTANT > 0, stopping
+     *  once it falls below FLOOR > 0. */
+    static AnnealingSchedule exponential(final double timeConstant,
+                                         final double floor) {
+        if (!(timeConstant > 0)) {
+            throw new StateException("time constant " + timeConstant
+                                     + " is not positive");
+        }
+        if (!(floor > 0)) {
+            throw new StateException("floor " + floor + " is not positive");
+        }
+        return new AnnealingSchedule() {
+            @Override
+            public double temperature(int step, double initial) {
+                double temp = initial * Math.exp(-step / timeConstant);
+                return temp < floor ? 0 : temp;
+            }
+        };
+    }
+}
@@ -0,0 +1,615 @@
+package spin_glass;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Saves checkpoints of anneals and MPF fits to a file, and restores
+ *  them, so that a resumed run continues bit for bit as the interrupted
+ *  one would have.
+ *
+ *  A checkpoint holds the spins, thresholds, weights, temperatures,
+ *  cached fields and energy of a lattice and the state of its
+ *  FastRandom. A checkpoint of an anneal adds the states of any parallel
+ *  sweeper's streams and the position within the anneal; one of an MPF
+ *  fit adds the position within the fit and the count of weight updates
+ *  that sets its checkpoint cadence.
+ *  Samplers are not checkpointed. A Sampling keeps its own generator,
+ *  which no checkpoint holds, so sampling from a restored lattice draws
+ *  a different, equally valid, chain than the interrupted run would
+ *  have. Its other buffers are scratch rebuilt on every step.
+ *
+ *  Saving is double-buffered: the caller only copies the state into
+ *  whichever of two snapshots is free, and a background thread writes it
+ *  out, so the run carries on while the previous checkpoint is still
+ *  being written. A caller only waits if both snapshots are still being
+ *  written. Files are written and read through memory-mapped windows,
+ *  so weight matrices of many gigabytes cost little more than the copy.
+ *  Each checkpoint goes to a temporary file first and is then moved over
+ *  the last one, so a crash mid-write loses nothing.
+ *  @author Andrew Berger */
+public class Checkpointer implements Closeable {
+
+    /** A new checkpointer saving to PATH. */
+    public Checkpointer(String path) {
+        _path = Paths.get(path);
+        _snapshots = new Snapshot[] { new Snapshot(), new Snapshot() };
+        _pending = new Future<?>[2];
+        _writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "spin_glass-checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /** Checkpoints GLASS, including the position of its anneal. */
+    public void save(InteractingLattice glass) {
+        Snapshot snapshot = nextSnapshot();
+        snapshot.capture(glass, LATTICE);
+        snapshot._annealing = glass._annealing;
+        snapshot._annealStep = glass._annealStep;
+        snapshot._plateauSteps = glass._plateauSteps;
+        snapshot._lastEnergy = glass._lastEnergy;
+        ParallelSweeper sweeper = glass._sweeper;
+        FastRandom[] streams = sweeper == null ? new FastRandom[0]
+            : sweeper.streams();
+        snapshot._streams = fit(snapshot._streams,
+                                streams.length * FastRandom.STATE_LONGS);
+        for (int b = 0; b < streams.length; b++) {
+            streams[b].saveState(snapshot._streams, b * FastRandom.STATE_LONGS);
+        }
+        submit(snapshot);
+    }
+
+    /** Checkpoints MPF, including its lattice and the position of its
+     *  fit. */
+    public void save(MPF mpf) {
+        Snapshot snapshot = nextSnapshot();
+        snapshot.capture(mpf.getLattice(), FIT);
+        snapshot._epoch = mpf._epoch;
+        snapshot._batches = mpf._batches;
+        snapshot._objective = mpf._objective;
+        snapshot._updates = mpf._updates;
+        submit(snapshot);
+    }
+
+    /** Waits until every checkpoint saved so far is on disk. */
+    public void await() {
+        for (int k = 0; k < _pending.length; k++) {
+            waitFor(k);
+        }
+    }
+
+    /** Waits for my outstanding checkpoints, then stops my writer. */
+    @Override
+    public void close() {
+        await();
+        _writer.shutdown();
+    }
+
+    /** Restores GLASS, which must be built like the lattice saved, from
+     *  the checkpoint at PATH. If it was saved mid-anneal, GLASS.resume()
+     *  then finishes that anneal. */
+    public static void restore(String path, InteractingLattice glass)
+        throws IOException {
+        try (Input in = new Input(Paths.get(path))) {
+            restoreLattice(in, glass, LATTICE);
+            glass._annealing = in.readInt() != 0;
+            glass._annealStep = in.readInt();
+            glass._plateauSteps = in.readInt();
+            glass._lastEnergy = in.readDouble();
+            long[] streams = new long[in.readInt()];
+            in.readLongs(streams);
+            if (streams.length > 0) {
+                FastRandom[] live = glass._sweeper == null ? null
+                    : glass._sweeper.streams();
+                if (live == null
+                    || live.length * FastRandom.STATE_LONGS != streams.length) {
+                    throw new StateException("checkpoint needs a parallel "
+                                             + "sweeper like the one saved");
+                }
+                for (int b = 0; b < live.length; b++) {
+                    live[b].restoreState(streams, b * FastRandom.STATE_LONGS);
+                }
+            }
+        }
+    }
+
+    /** Restores MPF, whose lattice must be built like the one saved,
+     *  from the checkpoint at PATH. A mini-batch fit with the same batch
+     *  size then carries on where the saved one was, checkpointing at
+     *  the same updates it would have. */
+    public static void restore(String path, MPF mpf) throws IOException {
+        try (Input in = new Input(Paths.get(path))) {
+            restoreLattice(in, mpf.getLattice(), FIT);
+            mpf._epoch = in.readInt();
+            mpf._batches = in.readLong();
+            mpf._objective = in.readDouble();
+            mpf._updates = in.readLong();
+        }
+    }
+
+    /** Reads the part of a checkpoint common to every kind into GLASS,
+     *  checking that it is a checkpoint of kind KIND. */
+    private static void restoreLattice(Input in, Lattice glass, int kind) {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new StateException("not a checkpoint");
+        }
+        if (in.readInt() != kind) {
+            throw new StateException("checkpoint of the wrong kind");
+        }
+        int size = in.readInt();
+        if (size != glass.latticeSize()) {
+            throw new StateException("checkpoint of " + size + " spins for "
+                                     + "a lattice of " + glass.latticeSize());
+        }
+        long[] words = new long[State.numWords(size)];
+        in.readLongs(words);
+        int[] thresholds = new int[size];
+        in.readInts(thresholds);
+        for (int i = 0; i < size; i++) {
+            glass.setThreshold(i, thresholds[i]);
+        }
+        glass._temperature = in.readDouble();
+        glass._setTemperature = in.readDouble();
+        boolean fieldsValid = in.readInt() != 0;
+        double energy = in.readDouble();
+        double[] fields = new double[fieldsValid ? size : 0];
+        in.readDoubles(fields);
+        Weighting weights = glass._weights;
+        boolean sparse = in.readInt() != 0;
+        if (sparse != weights.isSparse()) {
+            throw new StateException("checkpoint weights stored differently");
+        }
+        if (sparse) {
+            double[] values = weights.sparseValues();
+            if (in.readLong() != values.length) {
+                throw new StateException("checkpoint couplings differ");
+            }
+            in.readDoubles(values);
+        } else {
+            double[][] rows = weights.denseRows();
+            int cols = rows.length == 0 ? 0 : rows[0].length;
+            if (in.readInt() != rows.length || in.readInt() != cols) {
+                throw new StateException("checkpoint weights of another shape");
+            }
+            for (double[] row : rows) {
+                in.readDoubles(row);
+            }
+        }
+        weights.touch();
+        glass.setWords(words);
+        if (fieldsValid) {
+            glass.restoreFields(fields, energy);
+        }
+        long[] rand = new long[FastRandom.STATE_LONGS];
+        in.readLongs(rand);
+        random(glass).restoreState(rand, 0);
+    }
+
+    /** Returns the FastRandom of GLASS, whose state a checkpoint can
+     *  hold; any other generator's cannot be. */
+    private static FastRandom random(Lattice glass) {
+        if (!(glass._rand instanceof FastRandom)) {
+            throw new StateException("only a FastRandom can be checkpointed");
+        }
+        return (FastRandom) glass._rand;
+    }
+
+    /** Returns ARRAY if it has LENGTH entries, otherwise a new array of
+     *  LENGTH. */
+    private static long[] fit(long[] array, int length) {
+        return array != null && array.length == length ? array
+            : new long[length];
+    }
+
+    /** Returns the next free snapshot, waiting for it to be written out
+     *  if both are busy. */
+    private Snapshot nextSnapshot() {
+        waitFor(_next);
+        return _snapshots[_next];
+    }
+
+    /** Hands SNAPSHOT, the one nextSnapshot returned, to my writer. */
+    private void submit(final Snapshot snapshot) {
+        _pending[_next] = _writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        snapshot.write(_path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        _next ^= 1;
+    }
+
+    /** Waits for snapshot K to be written, rethrowing any failure. */
+    private void waitFor(int k) {
+        Future<?> pending = _pending[k];
+        if (pending == null) {
+            return;
+        }
+        _pending[k] = null;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pending.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new StateException("checkpoint failed: " + e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A copy of everything a checkpoint holds, whose arrays are reused
+     *  from one checkpoint to the next. */
+    private static class Snapshot {
+
+        /** Copies the state common to every kind of checkpoint from
+         *  GLASS, as a checkpoint of kind KIND. */
+        void capture(Lattice glass, int kind) {
+            _kind = kind;
+            _size = glass.latticeSize();
+            PackedSpins spins = glass._lattice;
+            _words = fit(_words, spins.numWords());
+            for (int k = 0; k < _words.length; k++) {
+                _words[k] = spins.word(k);
+            }
+            if (_thresholds == null || _thresholds.length != _size) {
+                _thresholds = new int[_size];
+                _fields = new double[_size];
+            }
+            for (int i = 0; i < _size; i++) {
+                _thresholds[i] = glass.getThreshold(i);
+            }
+            _temperature = glass._temperature;
+            _setTemperature = glass._setTemperature;
+            double[] fields = glass.cachedFields();
+            _fieldsValid = fields != null;
+            if (_fieldsValid) {
+                System.arraycopy(fields, 0, _fields, 0, _size);
+                _energy = glass.cachedEnergy();
+            }
+            Weighting weights = glass._weights;
+            _sparse = weights.isSparse();
+            if (_sparse) {
+                double[] values = weights.sparseValues();
+                if (_values == null || _values.length != values.length) {
+                    _values = new double[values.length];
+                }
+                System.arraycopy(values, 0, _values, 0, values.length);
+            } else {
+                double[][] rows = weights.denseRows();
+                int cols = rows.length == 0 ? 0 : rows[0].length;
+                if (_rows == null || _rows.length != rows.length
+                    || (rows.length > 0 && _rows[0].length != cols)) {
+                    _rows = new double[rows.length][cols];
+                }
+                for (int i = 0; i < rows.length; i++) {
+                    System.arraycopy(rows[i], 0, _rows[i], 0, cols);
+                }
+            }
+            _rand = fit(_rand, FastRandom.STATE_LONGS);
+            random(glass).saveState(_rand, 0);
+        }
+
+        /** Writes me to PATH, by way of a temporary file. */
+        void write(Path path) throws IOException {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (Output out = new Output(temp, bytes())) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(_kind);
+                out.writeInt(_size);
+                out.writeLongs(_words);
+                out.writeInts(_thresholds);
+                out.writeDouble(_temperature);
+                out.writeDouble(_setTemperature);
+                out.writeInt(_fieldsValid ? 1 : 0);
+                out.writeDouble(_fieldsValid ? _energy : 0);
+                if (_fieldsValid) {
+                    out.writeDoubles(_fields);
+                }
+                out.writeInt(_sparse ? 1 : 0);
+                if (_sparse) {
+                    out.writeLong(_values.length);
+                    out.writeDoubles(_values);
+                } else {
+                    out.writeInt(_rows.length);
+                    out.writeInt(_rows.length == 0 ? 0 : _rows[0].length);
+                    for (double[] row : _rows) {
+                        out.writeDoubles(row);
+                    }
+                }
+                out.writeLongs(_rand);
+                if (_kind == LATTICE) {
+                    out.writeInt(_annealing ? 1 : 0);
+                    out.writeInt(_annealStep);
+                    out.writeInt(_plateauSteps);
+                    out.writeDouble(_lastEnergy);
+                    out.writeInt(_streams.length);
+                    out.writeLongs(_streams);
+                } else {
+                    out.writeInt(_epoch);
+                    out.writeLong(_batches);
+                    out.writeDouble(_objective);
+                    out.writeLong(_updates);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /** Returns the number of bytes write() writes. */
+        long bytes() {
+            long bytes = 4 * 4 + 8L * _words.length + 4L * _size + 2 * 8
+                + 4 + 8 + (_fieldsValid ? 8L * _size : 0) + 4;
+            if (_sparse) {
+                bytes += 8 + 8L * _values.length;
+            } else {
+                bytes += 2 * 4;
+                for (double[] row : _rows) {
+                    bytes += 8L * row.length;
+                }
+            }
+            bytes += 8L * _rand.length;
+            if (_kind == LATTICE) {
+                bytes += 3 * 4 + 8 + 4 + 8L * _streams.length;
+            } else {
+                bytes += 4 + 8 + 8 + 8;
+            }
+            return bytes;
+        }
+
+        int _kind;
+        int _size;
+        long[] _words;
+        int[] _thresholds;
+        double _temperature;
+        double _setTemperature;
+        boolean _fieldsValid;
+        double[] _fields;
+        double _energy;
+        boolean _sparse;
+        /** Dense weights, if not _sparse. */
+        double[][] _rows;
+        /** Stored coupling values, if _sparse. */
+        double[] _values;
+        long[] _rand;
+        boolean _annealing;
+        int _annealStep;
+        int _plateauSteps;
+        double _lastEnergy;
+        /** Saved states of the parallel sweeper's streams, if any. */
+        long[] _streams;
+        int _epoch;
+        long _batches;
+        double _objective;
+        long _updates;
+    }
+
+    /** Writes a file through memory-mapped windows of at most WINDOW
+     *  bytes, little-endian. */
+    private static class Output implements Closeable {
+
+        /** Opens PATH for a payload of about LENGTH bytes, which sizes my
+         *  windows; writing more still works, a window at a time. */
+        Output(Path path, long length) throws IOException {
+            _length = length;
+            _channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+            map(0, 0);
+        }
+
+        void writeInt(int x) throws IOException {
+            reserve(4);
+            _map.putInt(x);
+        }
+
+        void writeLong(long x) throws IOException {
+            reserve(8);
+            _map.putLong(x);
+        }
+
+        void writeDouble(double x) throws IOException {
+            reserve(8);
+            _map.putDouble(x);
+        }
+
+        void writeInts(int[] xs) throws IOException {
+            for (int k = 0; k < xs.length;) {
+                reserve(4);
+                int n = Math.min(xs.length - k, _map.remaining() / 4);
+                _map.asIntBuffer().put(xs, k, n);
+                _map.position(_map.position() + 4 * n);
+                k += n;
+            }
+        }
+
+        void writeLongs(long[] xs) throws IOException {
+            for (int k = 0; k < xs.length;) {
+                reserve(8);
+                int n = Math.min(xs.length - k, _map.remaining() / 8);
+                _map.asLongBuffer().put(xs, k, n);
+                _map.position(_map.position() + 8 * n);
+                k += n;
+            }
+        }
+
+        void writeDoubles(double[] xs) throws IOException {
+            for (int k = 0; k < xs.length;) {
+                reserve(8);
+                int n = Math.min(xs.length - k, _map.remaining() / 8);
+                _map.asDoubleBuffer().put(xs, k, n);
+                _map.position(_map.position() + 8 * n);
+                k += n;
+            }
+        }
+
+        /** Flushes what I wrote to disk and trims the file to it. */
+        @Override
+        public void close() throws IOException {
+            long end = _base + _map.position();
+            _map.force();
+            _map = null;
+            _channel.truncate(end);
+            _channel.force(true);
+            _channel.close();
+        }
+
+        /** Maps a new window if fewer than N bytes are left in mine. */
+        private void reserve(int n) throws IOException {
+            if (_map.remaining() < n) {
+                _map.force();
+                map(_base + _map.position(), n);
+            }
+        }
+
+        /** Maps the window starting at byte BASE, of at least N bytes
+         *  and otherwise no further than the end of my payload. */
+        private void map(long base, int n) throws IOException {
+            _base = base;
+            long size = Math.max(n, Math.min(WINDOW, _length - base));
+            _map = _channel.map(FileChannel.MapMode.READ_WRITE, base, size);
+            _map.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private final FileChannel _channel;
+        /** Expected length of my file. */
+        private final long _length;
+        private MappedByteBuffer _map;
+        /** File offset of my window. */
+        private long _base;
+    }
+
+    /** Reads a file written by Output through memory-mapped windows. */
+    private static class Input implements Closeable {
+
+        Input(Path path) throws IOException {
+            _channel = FileChannel.open(path, StandardOpenOption.READ);
+            _length = _channel.size();
+            map(0);
+        }
+
+        int readInt() {
+            reserve(4);
+            return _map.getInt();
+        }
+
+        long readLong() {
+            reserve(8);
+            return _map.getLong();
+        }
+
+        double readDouble() {
+            reserve(8);
+            return _map.getDouble();
+        }
+
+        void readInts(int[] xs) {
+            for (int k = 0; k < xs.length;) {
+                reserve(4);
+                int n = Math.min(xs.length - k, _map.remaining() / 4);
+                _map.asIntBuffer().get(xs, k, n);
+                _map.position(_map.position() + 4 * n);
+                k += n;
+            }
+        }
+
+        void readLongs(long[] xs) {
+            for (int k = 0; k < xs.length;) {
+                reserve(8);
+                int n = Math.min(xs.length - k, _map.remaining() / 8);
+                _map.asLongBuffer().get(xs, k, n);
+                _map.position(_map.position() + 8 * n);
+                k += n;
+            }
+        }
+
+        void readDoubles(double[] xs) {
+            for (int k = 0; k < xs.length;) {
+                reserve(8);
+                int n = Math.min(xs.length - k, _map.remaining() / 8);
+                _map.asDoubleBuffer().get(xs, k, n);
+                _map.position(_map.position() + 8 * n);
+                k += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+
+        /** Maps the next window if fewer than N bytes are left in mine. */
+        private void reserve(int n) {
+            if (_map.remaining() < n) {
+                long base = _base + _map.position();
+                if (_length - base < n) {
+                    throw new StateException("checkpoint is truncated");
+                }
+                try {
+                    map(base);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /** Maps the window starting at byte BASE. */
+        private void map(long base) throws IOException {
+            _base = base;
+            _map = _channel.map(FileChannel.MapMode.READ_ONLY, base,
+                                Math.min(WINDOW, _length - base));
+            _map.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private final FileChannel _channel;
+        private final long _length;
+        private MappedByteBuffer _map;
+        /** File offset of my window. */
+        private long _base;
+    }
+
+    /** "SPCK" */
+    private static final int MAGIC = 0x5350434B;
+    private static final int VERSION = 2;
+    /** Kinds of checkpoint: of an anneal, or of an MPF fit. */
+    private static final int LATTICE = 1;
+    private static final int FIT = 2;
+    /** Bytes mapped at a time. */
+    private static final long WINDOW = 1 << 26;
+
+    private final Path _path;
+    private final Snapshot[] _snapshots;
+    /** The write of each snapshot still outstanding, or null. */
+    private final Future<?>[] _pending;
+    /** Index of the snapshot the next checkpoint goes to. */
+    private int _next;
+    private final ExecutorService _writer;
+}
@@ -5,4 +5,6 @@ public class Constants {
     public static final double EPS = .005;
     /** MPF infitesimal. */
     public static final double EPSILLON = .001;
+    /** Squared gradient magnitude below which MPF training stops. */
+    public static final double GRADIENT_TOLERANCE = 1e-12;
 }
\ No newline at end of file
@@ -0,0 +1,428 @@
+package spin_glass;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static spin_glass.Constants.*;
+
+/** Exact Boltzmann statistics of a small InteractingLattice, at its
+ *  current temperature, by walking all 2^N of its states.
+ *
+ *  The top bits of the state are fixed to cut the walk into up to
+ *  2^PREFIX independent tasks of at least 2^MIN_WALK states. Each task
+ *  visits the states of its prefix in Gray code order, so consecutive
+ *  states differ by one spin. The energy is
+ *  then patched from that spin's local field, and the fields from one
+ *  row of the weights, exactly as Lattice.flipSpin does. Task results
+ *  are merged pairwise up a fixed tree, optionally on a ForkJoinPool,
+ *  so they are bit-identical whatever the number of threads.
+ *
+ *  Boltzmann weights are summed relative to a running maximum of -E/T,
+ *  in log-sum-exp form, so Z neither overflows nor underflows. The
+ *  lowest INNER bits form blocks of consecutive states in which every
+ *  other spin is fixed. Each state adds its weight to a histogram
+ *  indexed by its inner bits, and the moments <s_i> and <s_i s_j> are
+ *  read off the histograms and block totals. Those moments then cost
+ *  O(1) per state, not O(N^2). The flows of the MPF objective are
+ *  patched for the flipped spin and its neighbors, and resummed at the
+ *  end of every block so that rounding cannot drift. When the weights
+ *  and thresholds are integers, the Boltzmann weights and the flows are
+ *  looked up in tables rather than exponentiated.
+ *
+ *  Meant as ground truth for the samplers and for MPF on glasses of up
+ *  to about 32 spins.
+ *  @author Andrew Berger */
+public class ExactEnumerator {
+
+    /** The largest lattice I will enumerate. */
+    public static final int MAX_SPINS = 40;
+
+    /** A new enumerator for GLASS, which must have at most MAX_SPINS
+     *  spins. Nothing is computed until enumerate(). */
+    ExactEnumerator(InteractingLattice glass) {
+        if (glass.latticeSize() > MAX_SPINS) {
+            throw new StateException("cannot enumerate "
+                                     + glass.latticeSize() + " spins");
+        }
+        _glass = glass;
+        _size = glass.latticeSize();
+    }
+
+    /** Enumerates on POOL from now on, or on the calling thread if POOL
+     *  is null. */
+    public void setPool(ForkJoinPool pool) {
+        _pool = pool;
+    }
+
+    /** Walks every state of my glass at its current weights, thresholds
+     *  and temperature, which must be positive, and keeps the
+     *  statistics read by my other methods. */
+    public void enumerate() {
+        _temperature = _glass._temperature;
+        if (!(_temperature > 0)) {
+            throw new StateException("need a positive temperature");
+        }
+        _weightsVersion = _glass._weights.version();
+        _thresholdsVersion = _glass.thresholdsVersion();
+        _flowTable = flowTable();
+        int prefix = Math.max(0, Math.min(_size - MIN_WALK, PREFIX));
+        Walks root = new Walks(prefix, 0, 1L << prefix);
+        _sums = _pool == null ? root.compute() : _pool.invoke(root);
+    }
+
+    /** Returns log Z, where Z = sum_x exp(-E(x) / T). */
+    public double logPartitionFunction() {
+        return sums()._shift + Math.log(_sums._z);
+    }
+
+    /** Returns the mean energy <E>. */
+    public double meanEnergy() {
+        return sums()._energy / _sums._z;
+    }
+
+    /** Returns the mean <s_I> of spin I. */
+    public double magnetization(int i) {
+        return sums()._single[i] / _sums._z;
+    }
+
+    /** Returns the correlation <s_I s_J>. */
+    public double correlation(int i, int j) {
+        if (i == j) {
+            return 1;
+        }
+        return sums()._pair[Math.min(i, j)][Math.max(i, j)] / _sums._z;
+    }
+
+    /** Returns the MPF objective, as MPF reports it, of infinitely many
+     *  observations drawn from my glass's Boltzmann distribution:
+     *  EPSILLON <sum_j exp(-s_j h_j)>. */
+    public double mpfObjective() {
+        return EPSILLON * sums()._mpf / _sums._z;
+    }
+
+    /** Returns log p(X) = -E(X) / T - log Z for a state X of my glass.
+     *  Throws a StateException if my glass's weights or thresholds have
+     *  changed since enumerate(), since E is read from them. */
+    public double logProbability(State x) {
+        sums();
+        if (_glass._weights.version() != _weightsVersion
+            || _glass.thresholdsVersion() != _thresholdsVersion) {
+            throw new StateException("not enumerated");
+        }
+        if (x.size() != _size) {
+            throw new StateException("state of " + x.size()
+                                     + " spins for a lattice of " + _size);
+        }
+        double[] spins = new double[_size];
+        for (int i = 0; i < _size; i++) {
+            spins[i] = x.getSpin(i) ? 1 : -1;
+        }
+        double[] fields = new double[_size];
+        return -energy(spins, fields) / _temperature
+            - logPartitionFunction();
+    }
+
+    /** Returns my sums, throwing a StateException if enumerate() has not
+     *  been called. */
+    private Sums sums() {
+        if (_sums == null) {
+            throw new StateException("not enumerated");
+        }
+        return _sums;
+    }
+
+    /** Fills FIELDS with the local fields of my glass in state SPINS,
+     *  each +-1, and returns its energy. */
+    private double energy(double[] spins, double[] fields) {
+        for (int j = 0; j < _size; j++) {
+            fields[j] = -_glass.getThreshold(j);
+        }
+        _glass._weights.multiplyTransposed(spins, fields);
+        double e = 0;
+        for (int j = 0; j < _size; j++) {
+            int theta = _glass.getThreshold(j);
+            e += spins[j] * (theta - .5 * (fields[j] + theta));
+        }
+        return e;
+    }
+
+    /** Returns exp(-v) for every integer v in [-B, B], B bounding the
+     *  magnitude of every local field, if the fields are integers and B
+     *  is at most MAX_TABLE, or otherwise null. Sets _energyBound, the
+     *  energies then being integers too, or to -1. */
+    private double[] flowTable() {
+        double bound = _glass._weights.integralFieldBound();
+        int theta = 0;
+        for (int j = 0; j < _size; j++) {
+            theta = Math.max(theta, Math.abs(_glass.getThreshold(j)));
+        }
+        if (bound < 0 || bound + theta > MAX_TABLE) {
+            _energyBound = -1;
+            return null;
+        }
+        _energyBound = _size * ((int) bound + 2 * theta);
+        int b = (int) bound + theta;
+        double[] table = new double[2 * b + 1];
+        for (int v = -b; v <= b; v++) {
+            table[v + b] = Math.exp(-v);
+        }
+        return table;
+    }
+
+    /** Statistics of a set of states, every sum scaled by exp(-_shift). */
+    private static class Sums {
+
+        Sums(int size) {
+            _single = new double[size];
+            _pair = new double[size][size];
+        }
+
+        /** Multiplies every sum by exp(_shift - SHIFT) and makes SHIFT
+         *  my shift. */
+        void rescale(double shift) {
+            double scale = Math.exp(_shift - shift);
+            _z *= scale;
+            _energy *= scale;
+            _mpf *= scale;
+            for (int i = 0; i < _single.length; i++) {
+                _single[i] *= scale;
+                for (int j = i + 1; j < _single.length; j++) {
+                    _pair[i][j] *= scale;
+                }
+            }
+            _shift = shift;
+        }
+
+        /** Adds the statistics of OTHER to mine. */
+        void add(Sums other) {
+            if (other._shift > _shift) {
+                rescale(other._shift);
+            }
+            double scale = Math.exp(other._shift - _shift);
+            _z += scale * other._z;
+            _energy += scale * other._energy;
+            _mpf += scale * other._mpf;
+            for (int i = 0; i < _single.length; i++) {
+                _single[i] += scale * other._single[i];
+                for (int j = i + 1; j < _single.length; j++) {
+                    _pair[i][j] += scale * other._pair[i][j];
+                }
+            }
+        }
+
+        /** Log of the factor every sum is divided by. */
+        double _shift;
+        /** Sum of weights. */
+        double _z;
+        /** Sum of weights times energy. */
+        double _energy;
+        /** Sum of weights times sum_j exp(-s_j h_j). */
+        double _mpf;
+        /** Sum of weights times s_i. */
+        final double[] _single;
+        /** Sum of weights times s_i s_j, for i < j. */
+        final double[][] _pair;
+    }
+
+    /** Enumerates the states whose top PREFIX bits are each of
+     *  [START, END), halving the range until one prefix is left and
+     *  adding the statistics of the right half to the left. */
+    private class Walks extends RecursiveTask<Sums> {
+
+        Walks(int prefix, long start, long end) {
+            _prefix = prefix;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected Sums compute() {
+            if (_end - _start == 1) {
+                return walk(_prefix, _start);
+            }
+            long mid = (_start + _end) >>> 1;
+            Walks left = new Walks(_prefix, _start, mid);
+            Walks right = new Walks(_prefix, mid, _end);
+            Sums sum;
+            if (_pool == null) {
+                sum = left.compute();
+                sum.add(right.compute());
+            } else {
+                left.fork();
+                Sums rightSum = right.compute();
+                sum = left.join();
+                sum.add(rightSum);
+            }
+            return sum;
+        }
+
+        private final int _prefix;
+        private final long _start;
+        private final long _end;
+    }
+
+    /** Returns the statistics of the states whose top PREFIX bits are
+     *  TOP, walked in Gray code order over the remaining low bits. */
+    private Sums walk(int prefix, long top) {
+        int low = _size - prefix;
+        int inner = Math.min(low, INNER);
+        double[] spins = new double[_size];
+        for (int i = 0; i < _size; i++) {
+            spins[i] = i >= low && (top >>> (i - low) & 1) != 0 ? 1 : -1;
+        }
+        double[] fields = new double[_size];
+        double energy = energy(spins, fields);
+        double[] flows = new double[_size];
+        double flowSum = 0;
+        for (int j = 0; j < _size; j++) {
+            flows[j] = flow(spins[j] * fields[j]);
+            flowSum += flows[j];
+        }
+        Sums sums = new Sums(_size);
+        sums._shift = -energy / _temperature;
+        double[] weights = weightTable(sums._shift, low);
+        double[] block = new double[1 << inner];
+        double[] histogram = new double[1 << inner];
+        double[] innerSums = new double[inner];
+        Weighting couplings = _glass._weights;
+        int pattern = 0;
+        for (long k = 0; k < 1L << low; k++) {
+            if (k > 0) {
+                int b = Long.numberOfTrailingZeros(k);
+                if (b >= inner) {
+                    closeBlock(sums, block, histogram, spins, innerSums);
+                    flowSum = 0;
+                    for (int j = 0; j < _size; j++) {
+                        flowSum += flows[j];
+                    }
+                } else {
+                    pattern ^= 1 << b;
+                }
+                energy += 2 * spins[b] * fields[b];
+                spins[b] = -spins[b];
+                couplings.addRow(b, 2 * spins[b], fields);
+                double t = flow(spins[b] * fields[b]);
+                flowSum += t - flows[b];
+                flows[b] = t;
+                for (int p = 0; p < couplings.degree(b); p++) {
+                    int j = couplings.neighbor(b, p);
+                    t = flow(spins[j] * fields[j]);
+                    flowSum += t - flows[j];
+                    flows[j] = t;
+                }
+            }
+            double logWeight = -energy / _temperature;
+            if (logWeight > sums._shift + RESCALE) {
+                double scale = Math.exp(sums._shift - logWeight);
+                for (int g = 0; g < block.length; g++) {
+                    block[g] *= scale;
+                    histogram[g] *= scale;
+                }
+                sums.rescale(logWeight);
+                weights = weightTable(sums._shift, low);
+            }
+            double w = weights == null ? Math.exp(logWeight - sums._shift)
+                : weights[(int) energy + _energyBound];
+            block[pattern] += w;
+            sums._energy += w * energy;
+            sums._mpf += w * flowSum;
+        }
+        closeBlock(sums, block, histogram, spins, innerSums);
+        for (int g = 0; g < histogram.length; g++) {
+            double w = histogram[g];
+            for (int i = 0; i < inner; i++) {
+                double si = (g >>> i & 1) != 0 ? w : -w;
+                sums._single[i] += si;
+                for (int j = i + 1; j < inner; j++) {
+                    sums._pair[i][j] += (g >>> j & 1) != 0 ? si : -si;
+                }
+            }
+        }
+        return sums;
+    }
+
+    /** Adds the states of the current BLOCK, whose spins from
+     *  INNERSUMS.length up are those of SPINS, to SUMS and its weights to
+     *  HISTOGRAM, then empties BLOCK. INNERSUMS is scratch, one entry per
+     *  inner bit, reused across the blocks of a walk. */
+    private void closeBlock(Sums sums, double[] block, double[] histogram,
+                            double[] spins, double[] innerSums) {
+        int inner = innerSums.length;
+        Arrays.fill(innerSums, 0);
+        double z = 0;
+        for (int g = 0; g < block.length; g++) {
+            double w = block[g];
+            z += w;
+            for (int j = 0; j < inner; j++) {
+                innerSums[j] += (g >>> j & 1) != 0 ? w : -w;
+            }
+            histogram[g] += w;
+            block[g] = 0;
+        }
+        sums._z += z;
+        for (int i = inner; i < _size; i++) {
+            double si = spins[i];
+            sums._single[i] += si * z;
+            for (int j = 0; j < inner; j++) {
+                sums._pair[j][i] += si * innerSums[j];
+            }
+            for (int j = i + 1; j < _size; j++) {
+                sums._pair[i][j] += si * spins[j] * z;
+            }
+        }
+    }
+
+    /** Returns the flow exp(-V) out of a spin whose field times spin
+     *  is V. */
+    private double flow(double v) {
+        return _flowTable == null ? Math.exp(-v)
+            : _flowTable[(int) v + (_flowTable.length >> 1)];
+    }
+
+    /** Returns exp(-e / T - SHIFT) for every integer energy e in
+     *  [-_energyBound, _energyBound], offset by _energyBound, if the
+     *  energies are integers and the table is small beside the 2^LOW
+     *  states of a walk, or otherwise null. */
+    private double[] weightTable(double shift, int low) {
+        if (_energyBound < 0
+            || (long) (2 * _energyBound + 1) << 2 > 1L << low) {
+            return null;
+        }
+        double[] table = new double[2 * _energyBound + 1];
+        for (int e = -_energyBound; e <= _energyBound; e++) {
+            table[e + _energyBound] = Math.exp(-e / _temperature - shift);
+        }
+        return table;
+    }
+
+    /** Most top bits fixed per task, giving up to 2^PREFIX tasks. */
+    private static final int PREFIX = 8;
+    /** Fewest low bits walked by a task. */
+    private static final int MIN_WALK = 12;
+    /** Low bits of the blocks moments are gathered over. */
+    private static final int INNER = 8;
+    /** Largest log weight above the shift before sums are rescaled. */
+    private static final double RESCALE = 64;
+    /** Largest field bound tabulated in _flowTable. */
+    private static final int MAX_TABLE = 1 << 12;
+
+    /** The glass I enumerate. */
+    private final InteractingLattice _glass;
+    private final int _size;
+    /** Pool tasks run on, or null for the caller's thread. */
+    private ForkJoinPool _pool;
+    /** Temperature of the last enumeration. */
+    private double _temperature;
+    /** exp(-v) for integral fields v, offset by half its length, or null
+     *  if the fields are not small integers. */
+    private double[] _flowTable;
+    /** Bound on the magnitude of every energy if the energies are
+     *  integers, else -1. */
+    private int _energyBound;
+    /** Statistics of the last enumeration, null before the first. */
+    private Sums _sums;
+    /** Weights and thresholds versions of my glass at enumerate(). */
+    private long _weightsVersion;
+    private long _thresholdsVersion;
+}
@@ -0,0 +1,128 @@
+package spin_glass;
+
+import java.util.Random;
+
+/** A fast, unsynchronized xoshiro256++ generator usable anywhere a
+ *  java.util.Random is. Random serializes every draw through an atomic
+ *  update of its seed; this keeps 256 bits of plain state instead, so
+ *  an instance must not be shared between threads. Give each thread its
+ *  own with split().
+ *  @author Andrew Berger */
+public class FastRandom extends Random {
+
+    /** A new generator with an unpredictable seed. */
+    public FastRandom() {
+        super();
+    }
+
+    /** A new generator seeded with SEED. */
+    public FastRandom(long seed) {
+        super(seed);
+    }
+
+    /** Returns a new generator, statistically independent of me, seeded
+     *  from my stream. */
+    public FastRandom split() {
+        return new FastRandom(nextLong());
+    }
+
+    /** Reseeds me from SEED, expanding it to my full state with
+     *  splitmix64 so that similar seeds give unrelated streams. */
+    @Override
+    public synchronized void setSeed(long seed) {
+        long z = seed;
+        z += GOLDEN;
+        _s0 = mix(z);
+        z += GOLDEN;
+        _s1 = mix(z);
+        z += GOLDEN;
+        _s2 = mix(z);
+        z += GOLDEN;
+        _s3 = mix(z);
+    }
+
+    @Override
+    public long nextLong() {
+        long result = Long.rotateLeft(_s0 + _s3, 23) + _s0;
+        long t = _s1 << 17;
+        _s2 ^= _s0;
+        _s3 ^= _s1;
+        _s1 ^= _s2;
+        _s0 ^= _s3;
+        _s2 ^= t;
+        _s3 = Long.rotateLeft(_s3, 45);
+        return result;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /** Returns a uniform int in [0, BOUND), by Lemire's multiply and
+     *  reject method, which almost never needs a second draw. */
+    @Override
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        long product = (nextLong() >>> 32) * bound;
+        if ((product & 0xFFFFFFFFL) < bound) {
+            long threshold = (1L << 32) % bound;
+            while ((product & 0xFFFFFFFFL) < threshold) {
+                product = (nextLong() >>> 32) * bound;
+            }
+        }
+        return (int) (product >>> 32);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return nextLong() < 0;
+    }
+
+    /** Copies my state into STATE[OFFSET .. OFFSET + STATE_LONGS). */
+    void saveState(long[] state, int offset) {
+        state[offset] = _s0;
+        state[offset + 1] = _s1;
+        state[offset + 2] = _s2;
+        state[offset + 3] = _s3;
+    }
+
+    /** Restores the state saved by saveState at OFFSET in STATE, so that
+     *  I continue exactly where that generator left off. */
+    void restoreState(long[] state, int offset) {
+        _s0 = state[offset];
+        _s1 = state[offset + 1];
+        _s2 = state[offset + 2];
+        _s3 = state[offset + 3];
+    }
+
+    /** Returns the splitmix64 finalizer of Z. */
+    private static long mix(long z) {
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        return z ^ z >>> 31;
+    }
+
+    /** Number of longs of state saved by saveState. */
+    static final int STATE_LONGS = 4;
+    /** Increment of the splitmix64 sequence. */
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    /** Generator state; never all zero. */
+    private long _s0;
+    private long _s1;
+    private long _s2;
+    private long _s3;
+}
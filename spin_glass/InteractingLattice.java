@@ -1,7 +1,6 @@
 package spin_glass;
 
-import java.util.BitSet;
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /** A lattice of interacting spins.
  *  AKA a hopfield network
@@ -11,14 +10,40 @@ public class InteractingLattice extends Lattice {
     /** A new interacting lattice with NUMSPINS.
      *  Initially all spins set to -1.*/
     InteractingLattice(int numSpins) {
+        _size = numSpins;
+        _lattice = new PackedSpins(numSpins);
         _weights = new Weighting(this);
+        _rand = new FastRandom();
+    }
+
+    /** A new interacting lattice with NUMSPINS, coupled only along
+     *  the pairs listed in NEIGHBORS, whose weights are stored sparsely.
+     *  Initially all spins set to -1.*/
+    InteractingLattice(int numSpins, int[][] neighbors) {
         _size = numSpins;
-        _lattice = new Spin[numSpins];
-        for (int i = 0; i < numSpins; i++) {
-            _lattice[i] = new Spin(false);
-        }
-        _rand = new Random();
-        _updatedSpins = new BitSet();
+        _lattice = new PackedSpins(numSpins);
+        _weights = new Weighting(this, neighbors);
+        _rand = new FastRandom();
+    }
+
+    /** A new interacting lattice with a spin per site of TOPOLOGY,
+     *  coupled only along its edges, whose weights are stored sparsely.
+     *  Initially all spins set to -1.*/
+    InteractingLattice(Topology topology) {
+        _size = topology.size();
+        _lattice = new PackedSpins(_size);
+        _weights = new Weighting(this, topology);
+        _rand = new FastRandom();
+    }
+
+    /** A new interacting lattice with NUMSPINS sharing WEIGHTS, which
+     *  must have been built for a lattice of the same size.
+     *  Initially all spins set to -1.*/
+    InteractingLattice(int numSpins, Weighting weights) {
+        _size = numSpins;
+        _lattice = new PackedSpins(numSpins);
+        _weights = weights;
+        _rand = new FastRandom();
     }
     
     @Override 
@@ -30,56 +55,202 @@ public class InteractingLattice extends Lattice {
         }
     }
 
-    /** Sets the spins in this glass to their corresponding
-     *  values in state. */
-    public void setSpins(State state) {
-        for (int i = 0; i < state.size(); i++) {
-            _lattice[i].set(state.getSpin(i));
+    /** Switches me to sweep mode: converge() then updates whole color
+     *  classes of independent spins at once, in parallel on POOL.
+     *  A null POOL returns me to single spin updates. */
+    public void setParallelSweeps(ForkJoinPool pool) {
+        _sweeper = pool == null ? null : new ParallelSweeper(this, pool);
+    }
+
+    /** Updates every spin once at the current temperature, in parallel
+     *  if I am in sweep mode, otherwise as latticeSize() updates of
+     *  random spins. Returns the number of spins that changed. */
+    public int sweep() {
+        int flips = 0;
+        if (_sweeper != null) {
+            flips = _sweeper.sweep();
+        } else {
+            for (int k = 0; k < latticeSize(); k++) {
+                int ind = _rand.nextInt(latticeSize());
+                int before = getSpin(ind);
+                updateSpin(ind);
+                if (getSpin(ind) != before) {
+                    flips += 1;
+                }
+            }
+        }
+        SpinGlassMetrics.get().recordUpdates(latticeSize(), flips);
+        return flips;
+    }
+
+    /** Anneals by SCHEDULE, holding each temperature for SWEEPSPERSTEP
+     *  full sweeps. */
+    public void setSchedule(AnnealingSchedule schedule, int sweepsPerStep) {
+        if (sweepsPerStep < 1) {
+            throw new StateException("need at least one sweep per step");
         }
+        _schedule = schedule;
+        _sweepsPerStep = sweepsPerStep;
     }
 
-    /** Gradually lowers temperature while updating spins randomly.
-     *  Calls descendGradient when zero temperature is reached. 
-     *  Annealing rule is currently a simple constant decrement per update. 
-     *  Much more sophisticated annealing rules possible.*/
+    /** Ends annealing early once PATIENCE consecutive steps each change
+     *  the energy by at most TOLERANCE (relative to its magnitude, or
+     *  absolute below 1) and flip at most a MAXACCEPTANCE fraction of
+     *  spin updates, an upper bound on the acceptance rate of a plateau.
+     *  PATIENCE of 0 disables early stopping. TOLERANCE must not be
+     *  negative, MAXACCEPTANCE must lie in [0, 1] and PATIENCE must not
+     *  be negative. */
+    public void setEarlyStop(double tolerance, double maxAcceptance,
+                             int patience) {
+        if (!(tolerance >= 0)) {
+            throw new StateException("negative plateau tolerance "
+                                     + tolerance);
+        }
+        if (!(maxAcceptance >= 0 && maxAcceptance <= 1)) {
+            throw new StateException("acceptance bound " + maxAcceptance
+                                     + " is not in [0, 1]");
+        }
+        if (patience < 0) {
+            throw new StateException("negative patience " + patience);
+        }
+        _plateauTolerance = tolerance;
+        _plateauAcceptance = maxAcceptance;
+        _patience = patience;
+    }
+
+    /** Returns the number of temperature steps my last anneal ran. */
+    public int annealSteps() {
+        return _annealStep;
+    }
+
+    /** Saves a checkpoint to CHECKPOINTS after every EVERY temperature
+     *  steps of my anneals. A null CHECKPOINTS stops checkpointing. */
+    public void setCheckpoints(Checkpointer checkpoints, int every) {
+        if (every < 1) {
+            throw new StateException("need a positive checkpoint interval");
+        }
+        _checkpoints = checkpoints;
+        _checkpointEvery = every;
+    }
+
+    /** Finishes the anneal I was restored in the middle of, exactly as
+     *  it would have run uninterrupted. Otherwise just converges. */
+    public void resume() {
+        if (_annealing) {
+            continueAnneal();
+        } else {
+            converge();
+        }
+    }
+
+    /** Gradually lowers temperature by my schedule while sweeping.
+     *  Calls descendGradient when the schedule ends, or earlier if the
+     *  energy and acceptance rate have plateaued. */
     private void anneal() {
+        _annealStep = 0;
+        _plateauSteps = 0;
+        _lastEnergy = getEnergy();
+        _temperature = _setTemperature;
+        _annealing = true;
+        continueAnneal();
+    }
+
+    /** Runs the steps of the current anneal from _annealStep on, then
+     *  descends. */
+    private void continueAnneal() {
         while (_temperature > 0) {
-            boltzmannSpinUpdate(randSpin());
-            _temperature -= ANNEAL_DECR;
+            long flips = 0;
+            for (int s = 0; s < _sweepsPerStep; s++) {
+                flips += sweep();
+            }
+            _annealStep += 1;
+            SpinGlassMetrics.get().observe(this);
+            if (plateaued(flips)) {
+                break;
+            }
+            _temperature = _schedule.temperature(_annealStep, _setTemperature);
+            if (_checkpoints != null && _annealStep % _checkpointEvery == 0) {
+                _checkpoints.save(this);
+            }
         }
+        _annealing = false;
         _temperature = _setTemperature;
         descendGradient();
+        SpinGlassMetrics.get().observe(this);
+    }
+
+    /** Records the step just finished, in which FLIPS spins changed, and
+     *  returns true iff it completes a plateau of my patience. */
+    private boolean plateaued(long flips) {
+        double energy = getEnergy();
+        if (_patience == 0) {
+            _lastEnergy = energy;
+            return false;
+        }
+        double acceptance =
+            (double) flips / ((long) _sweepsPerStep * latticeSize());
+        double change = Math.abs(energy - _lastEnergy);
+        if (change <= _plateauTolerance * Math.max(1, Math.abs(_lastEnergy))
+            && acceptance <= _plateauAcceptance) {
+            _plateauSteps += 1;
+        } else {
+            _plateauSteps = 0;
+        }
+        _lastEnergy = energy;
+        return _plateauSteps >= _patience;
     }
 
-    /** Deterministically updates a random spin.
-     *  Keeps track of already updated spins
-     *  Halts when we are guaranteed to have reached a fixed point */
+    /** Deterministically updates random spins until none would change.
+     *  Keeps the set of unstable spins, those whose local field disagrees
+     *  with them, so each step picks one in O(1), flips it and rechecks
+     *  only it and its neighbors. Halts exactly when the set is empty.
+     *  In sweep mode, sweeps at zero temperature until no spin changes. */
     private void descendGradient() {
-        long repr = representation();
-        int spin = randSpin();
-        do {
-            zeroTempSpinUpdate(spin);
-            if (representation() == repr) {
-                _updatedSpins.set(spin);
-            } else {
-                _updatedSpins.clear();
-                repr = representation();
+        if (_sweeper != null) {
+            double temp = _temperature;
+            _temperature = 0;
+            while (sweep() > 0) {
+                continue;
+            }
+            _temperature = temp;
+            return;
+        }
+        if (_unstable == null) {
+            _unstable = new int[latticeSize()];
+            _unstablePos = new int[latticeSize()];
+        }
+        _numUnstable = 0;
+        for (int i = 0; i < latticeSize(); i++) {
+            _unstablePos[i] = -1;
+            recheck(i);
+        }
+        long flips = 0;
+        while (_numUnstable > 0) {
+            int spin = _unstable[_rand.nextInt(_numUnstable)];
+            flipSpin(spin);
+            flips += 1;
+            recheck(spin);
+            for (int p = 0; p < _weights.degree(spin); p++) {
+                recheck(_weights.neighbor(spin, p));
             }
-            spin = randSpin();
-        } while (spin != -1);
-        _updatedSpins.clear();
+        }
+        SpinGlassMetrics.get().recordUpdates(flips, flips);
     }
 
-    /** Returns an index to a random spin that hasn't been updated.
-     *  Returns -1 if there is no spin that hasn't been updated.
-     *  This solution is somewhat naive, but should be fast enough. */
-    private int randSpin() {
-        int start = _rand.nextInt(latticeSize());
-        int closest = _updatedSpins.nextClearBit(start);
-        if (closest == -1) {
-            closest = _updatedSpins.previousClearBit(start);
+    /** Adds spin IND to the unstable set if a zero temperature update
+     *  would flip it, and removes it otherwise. */
+    private void recheck(int ind) {
+        boolean unstable = (getSpin(ind) > 0) != (localField(ind) > 0);
+        int pos = _unstablePos[ind];
+        if (unstable && pos < 0) {
+            _unstablePos[ind] = _numUnstable;
+            _unstable[_numUnstable++] = ind;
+        } else if (!unstable && pos >= 0) {
+            int last = _unstable[--_numUnstable];
+            _unstable[pos] = last;
+            _unstablePos[last] = pos;
+            _unstablePos[ind] = -1;
         }
-        return closest; 
     }
 
     @Override
@@ -87,9 +258,37 @@ public class InteractingLattice extends Lattice {
         return this;
     }
     
-    /** Keeps track of spins we have already updated.*/
-    private BitSet _updatedSpins;
-    /** Amount by which temperature is decremented at each update step*/
+    /** The unstable spins during gradient descent, in the first
+     *  _numUnstable entries. */
+    private int[] _unstable;
+    /** Index of each spin in _unstable, or -1 if it is stable. */
+    private int[] _unstablePos;
+    private int _numUnstable;
+    /** Parallel sweeper, or null if not in sweep mode. */
+    ParallelSweeper _sweeper;
+    /** Temperature law followed while annealing. */
+    private AnnealingSchedule _schedule = AnnealingSchedule.linear(ANNEAL_DECR);
+    /** Full sweeps run at each temperature. */
+    private int _sweepsPerStep = 1;
+    /** Largest relative energy change of a plateau step. */
+    private double _plateauTolerance;
+    /** Largest acceptance rate of a plateau step. */
+    private double _plateauAcceptance;
+    /** Plateau steps in a row that end annealing, 0 to never stop early. */
+    private int _patience;
+    /** Temperature steps run so far in the current anneal. */
+    int _annealStep;
+    /** Consecutive plateau steps seen so far. */
+    int _plateauSteps;
+    /** Energy at the end of the previous step. */
+    double _lastEnergy;
+    /** True iff an anneal is under way, between temperature steps. */
+    boolean _annealing;
+    /** Where anneals are checkpointed, or null. */
+    private Checkpointer _checkpoints;
+    /** Temperature steps between checkpoints. */
+    private int _checkpointEvery = 1;
+    /** Default amount by which temperature is decremented at each step*/
     private static final double ANNEAL_DECR = .1;
 
 
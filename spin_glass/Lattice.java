@@ -3,15 +3,13 @@ package spin_glass;
 import java.util.Random;
 import static spin_glass.Constants.*;
 
-/* To Do:
-   -Energy computing code is a mess:
-       properly implemented it should only compute the full energy
-       when necessary and update that value with calls to energyDiff
-       with subsequent single spin flips. 
- */
-
 /** A lattice of possibly interacting spins.
  *  Lattices are not resizable. 
+ *  Each spin's local field h_i = sum_j W_ij s_j - theta_i and the total
+ *  energy are cached, and patched on every single spin flip, so an
+ *  update costs O(neighbors) and getEnergy() is O(1). The cache is
+ *  rebuilt in full only after the weights or the predecessor change,
+ *  or after a whole state is loaded with setSpins.
  *  @author Andrew Berger*/
 abstract class Lattice {
 
@@ -43,55 +41,122 @@ abstract class Lattice {
 
     /** Returns the current activation of the spin at IND.*/
     public int getSpin(int ind) {
-        return _lattice[ind].get();
+        return _lattice.get(ind);
     }
 
     /** Returns the threshold of spin at IND. */
     public int getThreshold(int ind) {
-        return _lattice[ind].getThreshold();
+        return _lattice.getThreshold(ind);
+    }
+
+    /** Sets the threshold of spin at IND to THRESHOLD. */
+    public void setThreshold(int ind, int threshold) {
+        _lattice.setThreshold(ind, threshold);
+        _fieldsVersion = STALE;
+        _thresholdsVersion++;
     }
 
+    /** Returns the current energy of the lattice. */
     public double getEnergy() {
+        ensureFields();
         return _energy;
     }
 
     /** Sets the spin at IND to 1 iff ACTIVATED is true. */
     public void setSpin(int ind, boolean activated) {
-        _lattice[ind].set(activated);
+        if ((_lattice.getBool(ind) == 1) != activated) {
+            flipSpin(ind);
+        }
     }
     
     /** Flips the spin at IND. 
-     *  Is own inverse operation. */
+     *  Is own inverse operation.
+     *  Patches the cached energy and, if I interact with myself,
+     *  the local fields of my neighbors. */
     public void flipSpin(int ind) {
-        _lattice[ind].flip();
+        int spin = _lattice.get(ind);
+        _lattice.flip(ind);
+        _modCount++;
+        if (!fieldsStale()) {
+            _energy += 2 * spin * _fields[ind];
+            if (predecessor() == this) {
+                _weights.addRow(ind, -2 * spin, _fields);
+            }
+        }
     }
 
     /** Sets the spins in this glass to their corresponding
-     *  values in state. */
+     *  values in state, which must be of my size. */
     public void setSpins(State state) {
-        for (int i = 0; i < state.size(); i++) {
-            _lattice[i].set(state.getSpin(i));
+        if (state.size() != _size) {
+            throw new StateException("state of " + state.size()
+                                     + " spins for a lattice of " + _size);
+        }
+        for (int k = 0; k < _lattice.numWords(); k++) {
+            _lattice.setWord(k, state.word(k));
+        }
+        _modCount++;
+        _fieldsVersion = STALE;
+    }
+
+    /** Returns a copy of my current spins as a State. */
+    public State getState() {
+        long[] words = new long[_lattice.numWords()];
+        for (int k = 0; k < words.length; k++) {
+            words[k] = _lattice.word(k);
         }
+        return new State(words, _size);
+    }
+
+    /** Returns the local field sum_j W_ji s_j - theta_i at IND. */
+    public double localField(int ind) {
+        ensureFields();
+        return _fields[ind];
+    }
+
+    /** Returns a count that changes whenever any of my spins change. */
+    long modCount() {
+        return _modCount;
+    }
+
+    /** Returns a count that changes whenever any of my thresholds is
+     *  set. */
+    long thresholdsVersion() {
+        return _thresholdsVersion;
+    }
+
+    /** Recomputes the cached local field at IND alone.
+     *  Only valid when I interact with myself, so that row IND of my
+     *  weights is also column IND. */
+    void refreshField(int ind) {
+        _fields[ind] = _weights.rowDot(ind, _lattice) - getThreshold(ind);
+    }
+
+    /** Records that my spins were changed directly in _lattice by a bulk
+     *  updater which kept every local field current itself, and
+     *  recomputes the energy from those fields. */
+    void spinsUpdated() {
+        _modCount++;
+        _energy = energy();
     }
 
     /** Returns the probability of forming a bond between I,J
-     *  Namely, 1 - exp(-J_ij*S_I*S_J/ kb * T) */
-    public double pbond(State xcurr, int i, int j) {
-        setSpins(xcurr);
+     *  in my current state.
+     *  Namely, 1 - exp(-2 J_ij S_I S_J / kb T), the energy the bond would
+     *  gain by breaking, and 0 for an unsatisfied bond. */
+    public double pbond(int i, int j) {
         double J = _weights.get(i, j) * getSpin(i) * getSpin(j);
-        return 1 - Math.exp(-J/_temperature); 
+        return Math.max(0, 1 - Math.exp(-2 * J / _temperature));
     }
 
     /** Constructs a long representing the lattice state.
-     *  Not a very good hash,important property is that 
-     *   one spin flip will always produce a different number.*/
+     *  Exact for up to 64 spins; beyond that a fold of the packed words,
+     *  in which one spin flip will still always produce a different
+     *  number. */
     public long representation() {
         long repr = 0;
-        int currSpin = 0;
-        for (int k = 0; k < latticeSize(); k = k++ % 64) {
-            int bit = getSpin(currSpin) > 0 ? 1 : 0;
-            currSpin += 1;
-            repr ^= (bit << k);
+        for (int k = 0; k < _lattice.numWords(); k++) {
+            repr ^= Long.rotateLeft(_lattice.word(k), k);
         }
         return repr;
     }
@@ -103,61 +168,149 @@ abstract class Lattice {
         _temperature = temp;
     }
 
-    /** Computes and stores the energy, which is subsequently only updated
-     *  Through calls to the faster energy diff.*/
+    /** Computes and stores the local fields and the energy, which are
+     *  subsequently only updated through single spin flips.*/
     public void setEnergy() {
-        _energy = energy();
+        refreshFields();
     }
 
     /** Fully deterministic spin updater.
      *  Always settles into a local min. */
     void zeroTempSpinUpdate(int ind) {
-        double sum = 0;
-        for (int i = 0; i < predecessor().latticeSize(); i++) {
-            sum += _weights.get(i, ind) * predecessor().getSpin(ind);
-        }
-        if (sum > getThreshold(ind)) {
-            setSpin(ind, true);
-        } else {
-            setSpin(ind, false);
-        }
+        setSpin(ind, localField(ind) > 0);
     }
 
     /** Result of E(spin at ind = -1) - E(spin at ind = 1) */
     double energyDiff(int ind) {
-        double e = 0;
-        for (int i = 0; i < predecessor().latticeSize() && i != ind; i++) {
-            e += _weights.get(i, ind) * predecessor().getSpin(ind);
-        }
-        // check the sign here
-        e -= getThreshold(ind);
-        return e;
+        return 2 * localField(ind);
     }    
 
-    
+    /** Returns my cached local fields, or null if they are stale. */
+    double[] cachedFields() {
+        return fieldsStale() ? null : _fields;
+    }
 
-    /** Returns the total energy of this state. 
-     *  Call once and keep track of energy change with energyDiff,*/
-    private double energy() {
-        double e = 0;
-        for (int i = 0; i < predecessor().latticeSize(); i++) {
-            for (int j = 0; i < latticeSize(); j++) {
-                e -= _weights.get(i, j) * predecessor().getSpin(i) * getSpin(j); 
+    /** Returns my cached energy, valid iff cachedFields() is not null. */
+    double cachedEnergy() {
+        return _energy;
+    }
+
+    /** Installs copies of FIELDS and ENERGY as my cache, taken to be
+     *  current for my weights and predecessor as they now are. */
+    void restoreFields(double[] fields, double energy) {
+        if (_fields == null) {
+            _fields = new double[_size];
+        }
+        System.arraycopy(fields, 0, _fields, 0, _size);
+        _energy = energy;
+        _fieldsVersion = _weights.version();
+        _predecessorMods = predecessor().modCount();
+    }
+
+    /** Returns true iff my cached fields no longer reflect the weights
+     *  or the spins of my predecessor. */
+    boolean fieldsStale() {
+        return _fieldsVersion != _weights.version()
+            || (predecessor() != this 
+                && _predecessorMods != predecessor().modCount());
+    }
+
+    /** Recomputes the cached fields and energy if they are stale. */
+    void ensureFields() {
+        if (fieldsStale()) {
+            refreshFields();
+        }
+    }
+
+    /** Recomputes every local field from scratch, then the energy. */
+    void refreshFields() {
+        if (_fields == null) {
+            _fields = new double[_size];
+        }
+        for (int j = 0; j < _size; j++) {
+            _fields[j] = -getThreshold(j);
+        }
+        Lattice pred = predecessor();
+        if (_inputs == null) {
+            _inputs = new double[pred.latticeSize()];
+        }
+        for (int i = 0; i < _inputs.length; i++) {
+            _inputs[i] = pred.getSpin(i);
+        }
+        _weights.multiplyTransposed(_inputs, _fields);
+        _energy = energy();
+        _fieldsVersion = _weights.version();
+        _predecessorMods = pred.modCount();
+    }
+
+    /** Resamples all my spins at once, each from its local field at my
+     *  temperature, with a single matrix-vector product for the fields.
+     *  Only valid if I do not interact with myself, so that no spin's
+     *  field depends on my other spins. */
+    void updateLayer() {
+        ensureFields();
+        if (_layerWords == null) {
+            _layerWords = new long[_lattice.numWords()];
+        }
+        sampleWords(_fields, _layerWords);
+        long flips = 0;
+        for (int k = 0; k < _layerWords.length; k++) {
+            flips += Long.bitCount(_lattice.word(k) ^ _layerWords[k]);
+            _lattice.setWord(k, _layerWords[k]);
+        }
+        SpinGlassMetrics.get().recordUpdates(_size, flips);
+        _modCount++;
+        _energy = energy();
+    }
+
+    /** Fills WORDS with packed spins sampled from local fields FIELDS
+     *  at my temperature, activating spin j iff FIELDS[j] > 0 at zero
+     *  temperature. */
+    void sampleWords(double[] fields, long[] words) {
+        boolean zeroTemp = _temperature == 0;
+        for (int k = 0; k < words.length; k++) {
+            long word = 0;
+            int end = Math.min(64, fields.length - 64 * k);
+            for (int b = 0; b < end; b++) {
+                double field = fields[64 * k + b];
+                boolean on = zeroTemp ? field > 0
+                    : _rand.nextDouble() <= probOn(field);
+                if (on) {
+                    word |= 1L << b;
+                }
             }
+            words[k] = word;
         }
-        e = e / 2;
-        //not general, RBM sum over hidden layer too
-        for (int i = 0; i < latticeSize(); i++) {
-            e += getThreshold(i);
+    }
+
+    /** Replaces all my spins with those packed in WORDS. */
+    void setWords(long[] words) {
+        for (int k = 0; k < _lattice.numWords(); k++) {
+            _lattice.setWord(k, words[k]);
+        }
+        _modCount++;
+        _fieldsVersion = STALE;
+    }
+
+    /** Returns the total energy of this state, computed from the
+     *  cached local fields.
+     *  E = -scale * sum_ij W_ij s_i s_j + sum_j theta_j s_j, where scale
+     *  is 1/2 if I interact with myself, since each pair is then
+     *  counted twice. */
+    private double energy() {
+        double scale = predecessor() == this ? .5 : 1;
+        double e = 0;
+        for (int j = 0; j < _size; j++) {
+            int theta = getThreshold(j);
+            e += getSpin(j) * (theta - scale * (_fields[j] + theta));
         }
-        energySet = true;
         return e;
     }
     
     /** Sets my spins to X and returns my energy.*/
     public double getEnergy(State x) {
         setSpins(x);
-        return energy();
+        return getEnergy();
     }
     
     /** Returns the derivative of the Energy with respect
@@ -191,15 +344,68 @@ abstract class Lattice {
      *  In this way can 'tunnel' out of a local min. */
     void boltzmannSpinUpdate(int ind) {
         //double overflow to be wary of???
-        double boltzmannFactor = Math.pow(Math.E, -(energyDiff(ind) / _temperature));
-        double probOn = 1 / (1 + boltzmannFactor);
-        if (_rand.nextDouble() <= probOn) {
+        if (_rand.nextDouble() <= probOn(localField(ind))) {
             setSpin(ind, true);
         } else {
             setSpin(ind, false);
         }
     }
 
+    /** Returns the probability that a spin with local field FIELD
+     *  activates at my temperature, 1 / (1 + exp(-2 FIELD / T)).
+     *  Looked up in my acceptance table when FIELD is a tabulated
+     *  integer. */
+    double probOn(double field) {
+        ensureAcceptance();
+        int h = (int) field;
+        if (h == field && h >= -_acceptanceBound && h <= _acceptanceBound) {
+            return _acceptance[h + _acceptanceBound];
+        }
+        return 1 / (1 + Math.exp(-2 * field / _temperature));
+    }
+
+    /** Replaces my PRNG with RAND, e.g. to seed me reproducibly. */
+    public void setRandom(Random rand) {
+        _rand = rand;
+    }
+
+    /** Rebuilds my acceptance table if my temperature or weights have
+     *  changed since it was built. Must be called before probOn is used
+     *  from several threads at once. */
+    void ensureAcceptance() {
+        if (_acceptanceTemp != _temperature
+            || _acceptanceVersion != _weights.version()) {
+            refreshAcceptance();
+        }
+    }
+
+    /** Tabulates probOn over every integer field up to the largest
+     *  possible magnitude, if my weights are all integers and I am above
+     *  zero temperature, so that +-J and small integer models never
+     *  evaluate an exponential while sampling. Thresholds are integers
+     *  too, so fields are integers exactly. */
+    private void refreshAcceptance() {
+        double bound = _weights.integralFieldBound();
+        int theta = 0;
+        for (int j = 0; j < _size; j++) {
+            theta = Math.max(theta, Math.abs(getThreshold(j)));
+        }
+        _acceptanceBound = -1;
+        if (_temperature > 0 && bound >= 0 && bound + theta <= MAX_ACCEPTANCE) {
+            _acceptanceBound = (int) bound + theta;
+            int length = 2 * _acceptanceBound + 1;
+            if (_acceptance == null || _acceptance.length < length) {
+                _acceptance = new double[length];
+            }
+            for (int h = -_acceptanceBound; h <= _acceptanceBound; h++) {
+                _acceptance[h + _acceptanceBound] =
+                    1 / (1 + Math.exp(-2 * h / _temperature));
+            }
+        }
+        _acceptanceTemp = _temperature;
+        _acceptanceVersion = _weights.version();
+    }
+
     /** Our lattice is in equilibrium with a heat bath at TEMPERATURE.
      *  Always >= 0.
      *  Setting temperature to 0 yields a fully deterministic lattice.
@@ -209,16 +415,41 @@ abstract class Lattice {
     /** Temperature which simulated annealing is started from 
      *  and RBM update ran at. */
     double _setTemperature;
-    /** The spins in this lattice.*/
-    Spin[] _lattice;
+    /** The spins and thresholds in this lattice, bit-packed.*/
+    PackedSpins _lattice;
     /** The weights between spins in this lattice.*/
     Weighting _weights;
     /** Number of spins in this lattice. */
     int _size;
-    /** The PRNG. */
+    /** The PRNG. A FastRandom unless replaced with setRandom. */
     Random _rand; 
+    /** probOn of the integer fields in [-_acceptanceBound,
+     *  _acceptanceBound], at offset _acceptanceBound. */
+    private double[] _acceptance;
+    /** Largest tabulated field magnitude, -1 if nothing is tabulated. */
+    private int _acceptanceBound = -1;
+    /** Temperature and weights version _acceptance was built for. */
+    private double _acceptanceTemp = Double.NaN;
+    private long _acceptanceVersion = STALE;
     /** The current energy of the lattice. */
     private double _energy;
-    /** True iff the energy has been computed. */
-    private boolean energySet = false;
+    /** Cached local field of each spin. */
+    private double[] _fields;
+    /** Scratch: spins of my predecessor, as +-1. */
+    private double[] _inputs;
+    /** Scratch: spins sampled by updateLayer. */
+    private long[] _layerWords;
+    /** Weighting version my fields were computed against,
+     *  STALE if they must be recomputed. */
+    private long _fieldsVersion = STALE;
+    /** Modification count of my predecessor when fields were computed. */
+    private long _predecessorMods;
+    /** Incremented whenever my spins change. */
+    private long _modCount;
+    /** Incremented whenever a threshold is set. */
+    private long _thresholdsVersion;
+    /** Marks the cached fields as invalid. */
+    private static final long STALE = -1;
+    /** Largest field magnitude refreshAcceptance will tabulate. */
+    private static final int MAX_ACCEPTANCE = 1 << 12;
 }
\ No newline at end of file
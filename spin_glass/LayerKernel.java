@@ -0,0 +1,180 @@
+package spin_glass;
+
+/** Blocked dense matrix-vector kernels for whole-layer updates.
+ *  A dense weighting keeps W row-major, one contiguous row per spin of
+ *  the from lattice, and both products below stream those rows in
+ *  order, so neither ever strides down a column and W is never
+ *  transposed. Rows are taken four at a time so each load or store of
+ *  the accumulator serves four weights, and the up product works in
+ *  column tiles small enough that the accumulator stays in L1 while
+ *  every row passes over it. The inner loops are simple enough for the
+ *  JIT to vectorize.
+ *  @author Andrew Berger */
+final class LayerKernel {
+
+    /** Not instantiable. */
+    private LayerKernel() {
+    }
+
+    /** Adds W^T V to ACC: ACC[j] += sum_i V[i] W[i][j]. These are the
+     *  fields a from layer in state V induces on the to layer. */
+    static void multiplyTransposed(double[][] w, double[] v, double[] acc) {
+        int rows = w.length;
+        int cols = acc.length;
+        for (int start = 0; start < cols; start += TILE) {
+            int end = Math.min(cols, start + TILE);
+            int i = 0;
+            for (; i + 3 < rows; i += 4) {
+                double v0 = v[i];
+                double v1 = v[i + 1];
+                double v2 = v[i + 2];
+                double v3 = v[i + 3];
+                double[] r0 = w[i];
+                double[] r1 = w[i + 1];
+                double[] r2 = w[i + 2];
+                double[] r3 = w[i + 3];
+                for (int j = start; j < end; j++) {
+                    acc[j] += v0 * r0[j] + v1 * r1[j] + v2 * r2[j] + v3 * r3[j];
+                }
+            }
+            for (; i < rows; i++) {
+                double vi = v[i];
+                double[] row = w[i];
+                for (int j = start; j < end; j++) {
+                    acc[j] += vi * row[j];
+                }
+            }
+        }
+    }
+
+    /** Adds W H to ACC: ACC[i] += sum_j W[i][j] H[j]. These are the
+     *  fields a to layer in state H induces back on the from layer. */
+    static void multiply(double[][] w, double[] h, double[] acc) {
+        int rows = w.length;
+        int i = 0;
+        for (; i + 3 < rows; i += 4) {
+            double[] r0 = w[i];
+            double[] r1 = w[i + 1];
+            double[] r2 = w[i + 2];
+            double[] r3 = w[i + 3];
+            double s0 = 0;
+            double s1 = 0;
+            double s2 = 0;
+            double s3 = 0;
+            for (int j = 0; j < h.length; j++) {
+                double hj = h[j];
+                s0 += r0[j] * hj;
+                s1 += r1[j] * hj;
+                s2 += r2[j] * hj;
+                s3 += r3[j] * hj;
+            }
+            acc[i] += s0;
+            acc[i + 1] += s1;
+            acc[i + 2] += s2;
+            acc[i + 3] += s3;
+        }
+        for (; i < rows; i++) {
+            double[] row = w[i];
+            double s = 0;
+            for (int j = 0; j < h.length; j++) {
+                s += row[j] * h[j];
+            }
+            acc[i] += s;
+        }
+    }
+
+    /** Adds W^T V to ACC for CHAINS states at once. V and ACC hold one
+     *  state after another: entry i of chain c of V is V[c * rows + i].
+     *  Each block of four rows and a column tile is loaded once and then
+     *  applied to every chain while it sits in L1, so the cost of
+     *  streaming W is shared by all chains. */
+    static void multiplyTransposed(double[][] w, double[] v, int chains,
+                                   double[] acc) {
+        int rows = w.length;
+        int cols = acc.length / chains;
+        for (int start = 0; start < cols; start += CHAIN_TILE) {
+            int end = Math.min(cols, start + CHAIN_TILE);
+            int i = 0;
+            for (; i + 3 < rows; i += 4) {
+                double[] r0 = w[i];
+                double[] r1 = w[i + 1];
+                double[] r2 = w[i + 2];
+                double[] r3 = w[i + 3];
+                for (int c = 0; c < chains; c++) {
+                    int in = c * rows + i;
+                    double v0 = v[in];
+                    double v1 = v[in + 1];
+                    double v2 = v[in + 2];
+                    double v3 = v[in + 3];
+                    int out = c * cols;
+                    for (int j = start; j < end; j++) {
+                        acc[out + j] += v0 * r0[j] + v1 * r1[j]
+                            + v2 * r2[j] + v3 * r3[j];
+                    }
+                }
+            }
+            for (; i < rows; i++) {
+                double[] row = w[i];
+                for (int c = 0; c < chains; c++) {
+                    double vi = v[c * rows + i];
+                    int out = c * cols;
+                    for (int j = start; j < end; j++) {
+                        acc[out + j] += vi * row[j];
+                    }
+                }
+            }
+        }
+    }
+
+    /** Adds W H to ACC for CHAINS states at once, laid out as in
+     *  multiplyTransposed. Each block of four rows is loaded once and
+     *  dotted with every chain of H. */
+    static void multiply(double[][] w, double[] h, int chains, double[] acc) {
+        int rows = w.length;
+        int cols = h.length / chains;
+        int i = 0;
+        for (; i + 3 < rows; i += 4) {
+            double[] r0 = w[i];
+            double[] r1 = w[i + 1];
+            double[] r2 = w[i + 2];
+            double[] r3 = w[i + 3];
+            for (int c = 0; c < chains; c++) {
+                int in = c * cols;
+                double s0 = 0;
+                double s1 = 0;
+                double s2 = 0;
+                double s3 = 0;
+                for (int j = 0; j < cols; j++) {
+                    double hj = h[in + j];
+                    s0 += r0[j] * hj;
+                    s1 += r1[j] * hj;
+                    s2 += r2[j] * hj;
+                    s3 += r3[j] * hj;
+                }
+                int out = c * rows + i;
+                acc[out] += s0;
+                acc[out + 1] += s1;
+                acc[out + 2] += s2;
+                acc[out + 3] += s3;
+            }
+        }
+        for (; i < rows; i++) {
+            double[] row = w[i];
+            for (int c = 0; c < chains; c++) {
+                int in = c * cols;
+                double s = 0;
+                for (int j = 0; j < cols; j++) {
+                    s += row[j] * h[in + j];
+                }
+                acc[c * rows + i] += s;
+            }
+        }
+    }
+
+    /** Columns of the accumulator updated per pass over the rows:
+     *  8KB of doubles, well inside L1. */
+    static final int TILE = 1024;
+    /** Columns per tile when several chains share each block of rows:
+     *  four rows of it are 8KB. */
+    static final int CHAIN_TILE = 256;
+}
@@ -1,53 +1,244 @@
 package spin_glass;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import static spin_glass.Constants.*;
 
-/* To Do: 
-   -write energy gradients in Lattice
-   -write gradient descent 
-   -not sure explicit sparse matrix is necessary 
-   -really need static class to compute energy given state and weight
-*/
-
 /** Class implementing Minimum Probability Flow learning
  *  Initial implementation will only support Ising model,
  *  RBM will be supported as I better understand MPF
+ *  Gradients are accumulated in a fixed pool of LEAVES accumulators,
+ *  the leaves of a fixed tree, which are kept and cleared from one
+ *  gradient to the next. Each batch of observations is cut into one
+ *  contiguous range per leaf, of at least SHARD_SIZE, and each leaf
+ *  adds its range to its own accumulator, optionally on a ForkJoinPool.
+ *  Once every batch is in, the leaves are summed pairwise up the tree.
+ *  The ranges and the tree depend only on the number of observations,
+ *  so the gradient is bit-identical whatever the number of threads.
+ *  Observations are streamed from an ObservationSource in chunks, so
+ *  memory is bounded by the chunk (or mini-batch) size rather than the
+ *  size of the training set.
  *  @author Andrew Berger*/
 public class MPF {
 
     MPF(List<State> observations, Lattice spinGlass) {
+        this(ObservationSource.of(observations), spinGlass);
+    }
+
+    MPF(ObservationSource observations, Lattice spinGlass) {
         _observations = observations;
         _spinGlass = spinGlass;
+        _batch = new ArrayList<State>();
+    }
+
+    /** Computes gradients on POOL from now on, or on the calling thread
+     *  if POOL is null. */
+    public void setPool(ForkJoinPool pool) {
+        _pool = pool;
     }
 
     public void fit() {
         double[][] gradient = KLGradient();
-        //or maybe while greater than some epsillon?
-        while (magnitude(gradient) != 0) {
+        double magnitude = magnitude(gradient);
+        while (magnitude > GRADIENT_TOLERANCE) {
             _spinGlass.updateWeights(gradient);
+            SpinGlassMetrics.get().recordGradient(magnitude, _objective);
+            checkpoint();
             gradient = KLGradient();
+            magnitude = magnitude(gradient);
+        }
+    }
+
+    /** Trains by mini-batch gradient descent for EPOCHS passes over my
+     *  observations, updating the weights after every BATCHSIZE of them.
+     *  Only one batch is held in memory at a time.
+     *  If I was restored from a checkpoint taken during such a run,
+     *  carries on from the batch after it. */
+    public void fit(int batchSize, int epochs) {
+        int epoch = _epoch;
+        long batches = _batches;
+        for (; epoch < epochs; epoch++) {
+            _observations.rewind();
+            for (long k = 0; k < batches * batchSize; k++) {
+                _observations.next();
+            }
+            while (nextBatch(batchSize)) {
+                MPFGradient engine = batchGradient(_batch);
+                _objective = engine.objective();
+                double[][] gradient = engine.gradient();
+                _spinGlass.updateWeights(gradient);
+                SpinGlassMetrics.get().recordGradient(magnitude(gradient),
+                                                      _objective);
+                batches += 1;
+                _epoch = epoch;
+                _batches = batches;
+                checkpoint();
+            }
+            batches = 0;
+        }
+        _epoch = 0;
+        _batches = 0;
+        _batch.clear();
+    }
+
+    /** Saves a checkpoint to CHECKPOINTS after every EVERY weight
+     *  updates of my fits. A null CHECKPOINTS stops checkpointing. */
+    public void setCheckpoints(Checkpointer checkpoints, int every) {
+        if (every < 1) {
+            throw new StateException("need a positive checkpoint interval");
+        }
+        _checkpoints = checkpoints;
+        _checkpointEvery = every;
+    }
+
+    /** Saves a checkpoint if one is due after the update just made. */
+    private void checkpoint() {
+        _updates += 1;
+        if (_checkpoints != null && _updates % _checkpointEvery == 0) {
+            _checkpoints.save(this);
         }
     }
 
     public Lattice getLattice() {
         return _spinGlass;
     }
-    
+
+    /** Returns the MPF objective at the weights of the last gradient. */
+    public double getObjective() {
+        return _objective;
+    }
    
     /** Fills a matrix of the same dimension of the weight matrix
-     *  With the numerical derivative of that weight of 
-     *  the KL divergence. */
-    private double[][] KLGradient() {
-        int iSize = _spinGlass.predecessor().latticeSize();
-        int jSize = _spinGlass.latticeSize();
-        double[][] gradient = new double[iSize][jSize];
-        for (int i = 0; i < iSize; i++) {
-            for (int j = 0; j < jSize; j++) {
-                gradient[i][j] = KLPartial(i, j);           
+     *  With the derivative of the MPF objective wrt that weight,
+     *  in closed form and in a single pass over the observations. */
+    double[][] KLGradient() {
+        clearLeaves();
+        _observations.rewind();
+        int leaves = 1;
+        while (nextBatch(CHUNK_SIZE)) {
+            leaves = Math.max(leaves, accumulate(_batch));
+        }
+        _batch.clear();
+        MPFGradient engine = reduce(leaves);
+        _objective = engine.objective();
+        return engine.gradient();
+    }
+
+    /** Refills _batch with up to SIZE observations from my source.
+     *  Returns false if the source had none left. */
+    private boolean nextBatch(int size) {
+        _batch.clear();
+        while (_batch.size() < size) {
+            State obs = _observations.next();
+            if (obs == null) {
+                break;
+            }
+            _batch.add(obs);
+        }
+        return !_batch.isEmpty();
+    }
+
+    /** Returns the accumulated gradient over BATCH alone. */
+    private MPFGradient batchGradient(List<State> batch) {
+        clearLeaves();
+        return reduce(accumulate(batch));
+    }
+
+    /** Adds BATCH to my leaf accumulators, one contiguous range of it
+     *  per leaf, and returns the number of leaves it was cut into. */
+    private int accumulate(List<State> batch) {
+        int shards = (batch.size() + SHARD_SIZE - 1) / SHARD_SIZE;
+        int leaves = Math.max(1, Math.min(LEAVES, shards));
+        for (int k = 0; k < leaves; k++) {
+            leaf(k);
+        }
+        run(new Leaves(batch, leaves, 0, leaves));
+        return leaves;
+    }
+
+    /** Sums my first LEAVES accumulators pairwise into the first, and
+     *  returns it. */
+    private MPFGradient reduce(int leaves) {
+        run(new Leaves(null, leaves, 0, leaves));
+        return leaf(0);
+    }
+
+    /** Runs TASK on my pool, or on the calling thread if I have none. */
+    private void run(Leaves task) {
+        if (_pool == null) {
+            task.compute();
+        } else {
+            _pool.invoke(task);
+        }
+    }
+
+    /** Returns leaf accumulator K, making it on first use. */
+    private MPFGradient leaf(int k) {
+        if (_leaves[k] == null) {
+            _leaves[k] = new MPFGradient(_spinGlass);
+        }
+        return _leaves[k];
+    }
+
+    /** Empties every leaf accumulator made so far. */
+    private void clearLeaves() {
+        for (MPFGradient leaf : _leaves) {
+            if (leaf != null) {
+                leaf.clear();
             }
         }
-        return gradient;
+    }
+
+    /** Works on leaves [START, END) of a tree of LEAVES leaves, splitting
+     *  the range in half until one leaf is left. With a batch, each leaf
+     *  adds its range of the batch to its accumulator; without one, each
+     *  node sums its right half into its left, leaving the total in
+     *  leaf START. Every leaf must have been made, by the calling
+     *  thread, before I run. */
+    private class Leaves extends RecursiveAction {
+
+        Leaves(List<State> batch, int leaves, int start, int end) {
+            _batch = batch;
+            _leaves = leaves;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (_end - _start == 1) {
+                if (_batch != null) {
+                    MPFGradient engine = MPF.this._leaves[_start];
+                    long size = _batch.size();
+                    int first = (int) (_start * size / _leaves);
+                    int last = (int) ((_start + 1) * size / _leaves);
+                    for (int k = first; k < last; k++) {
+                        engine.add(_batch.get(k));
+                    }
+                }
+                return;
+            }
+            int mid = (_start + _end) >>> 1;
+            Leaves left = new Leaves(_batch, _leaves, _start, mid);
+            Leaves right = new Leaves(_batch, _leaves, mid, _end);
+            if (_pool == null) {
+                left.compute();
+                right.compute();
+            } else {
+                invokeAll(left, right);
+            }
+            if (_batch == null) {
+                MPF.this._leaves[_start].add(MPF.this._leaves[mid]);
+            }
+        }
+
+        /** The batch to accumulate, or null to reduce. */
+        private final List<State> _batch;
+        private final int _leaves;
+        private final int _start;
+        private final int _end;
     }
 
     /** Returns the L2norm of the gradient vector.*/
@@ -61,49 +252,34 @@ public class MPF {
         return mag;
     }
 
-    /** Computes the numerical derivative of MPF objective
-     *  func wrt weight n m. */
-    private double KLPartial(int n, int m) {
-        double partial = 0;
-        for (State obs: _observations) {
-            State[] bitFlips = obs.generateBitFlips();
-            for (int i = 0; i < _spinGlass.latticeSize(); i++) {
-                partial += _spinGlass.bitFlippedPartial(n, m, i) 
-                    * computeEntry(obs, i);
-            }
-        }
-        return partial * (EPSILLON / _observations.size());        
-    }
-
-    
-
-    /** Returns the computed weighted value of an entry in gamma.
-     *  Namely the difference in energy from flipping bit N of STATE,
-     *  weighted as prescribed in the paper. */
-    private double computeEntry(State s, int n) {
-        _spinGlass.setSpins(s);
-        double energy = _spinGlass.getEnergy();
-        int currSpin = _spinGlass.getSpin(n);
-        double flipE = _spinGlass.energyDiff(n);
-        double deltaE;
-        //SIGNS!!
-        if (currSpin == 1) {
-            deltaE = energy + flipE;
-        } else {
-            deltaE = energy - flipE;
-        }
-        deltaE = deltaE / 2;
-        return Math.pow(Math.E, deltaE);
-    }
-     
     /** The lattice we are training.  
      *  Spins are frequently changed to compute energies, weights are
      *  updated through gradient descent of MPF objective function. */
     Lattice _spinGlass;
-    List<State> _observations;
-    /** The transition probability matrix
-     *  Entry ij is of the form g ij exp (1/2(E j (R) - E i (R)))
-     *  R is the weight vector and g ij is 1 iff states ij are connected
-     *  Only j in obeservations are present */
-    SparseMatrix<Double> _gamma; 
+    ObservationSource _observations;
+    /** Observations currently being worked on. */
+    private List<State> _batch;
+    /** Pool gradients are computed on, or null for the caller's thread. */
+    private ForkJoinPool _pool;
+    /** Leaf accumulators, made as needed, at most LEAVES of them. */
+    private final MPFGradient[] _leaves = new MPFGradient[LEAVES];
+    /** Leaves of the accumulation tree: a fixed number, so that the
+     *  gradient does not depend on the number of threads. */
+    static final int LEAVES = 16;
+    /** Fewest observations a leaf is given from a batch. */
+    static final int SHARD_SIZE = 256;
+    /** Observations read from the source at once for a full gradient. */
+    static final int CHUNK_SIZE = 64 * SHARD_SIZE;
+    /** MPF objective at the weights of the last gradient. */
+    double _objective;
+    /** Epoch of the mini-batch fit in progress, and the batches of it
+     *  done, so a restored fit knows where to carry on. */
+    int _epoch;
+    long _batches;
+    /** Weight updates made, counting towards the next checkpoint. */
+    long _updates;
+    /** Where fits are checkpointed, or null. */
+    private Checkpointer _checkpoints;
+    /** Weight updates between checkpoints. */
+    private int _checkpointEvery = 1;
 }
\ No newline at end of file
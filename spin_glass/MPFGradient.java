@@ -0,0 +1,131 @@
+package spin_glass;
+
+import java.util.Arrays;
+
+import static spin_glass.Constants.*;
+
+/** Accumulates the MPF objective and its gradient with respect to the
+ *  weights of a lattice, one observation at a time.
+ *
+ *  For an observation x, flipping spin j changes the energy by
+ *  2 s_j h_j, where h_j is its local field, so the flow from x to that
+ *  neighbor is t_j = exp(-s_j h_j) and the objective gains sum_j t_j.
+ *  Since dh_j/dW_ij = v_i, the spin i of the predecessor, the gradient
+ *  gains the outer product -v_i s_j t_j over every coupling. When the
+ *  lattice is its own predecessor W_ij and W_ji are one parameter, so the
+ *  two halves are summed when the gradient is read.
+ *
+ *  Each observation costs one field computation and one outer product,
+ *  and the lattice itself is only read, never mutated.
+ *  @author Andrew Berger */
+class MPFGradient {
+
+    /** A new, empty accumulator for the weights of GLASS. */
+    MPFGradient(Lattice glass) {
+        _glass = glass;
+        _inputs = new double[glass.predecessor().latticeSize()];
+        _spins = new double[glass.latticeSize()];
+        _fields = new double[glass.latticeSize()];
+        _flows = new double[glass.latticeSize()];
+        _gradient = new double[_inputs.length][_spins.length];
+    }
+
+    /** Adds the contribution of observation OBS, a state of my lattice. */
+    void add(State obs) {
+        double[] flows = flows(obs);
+        for (int j = 0; j < flows.length; j++) {
+            _objective += flows[j];
+            _flows[j] = -_spins[j] * flows[j];
+        }
+        _glass._weights.addOuter(_inputs, _flows, _gradient);
+        _count += 1;
+    }
+
+    /** Returns the flow t_j from observation OBS to each of its
+     *  neighbors, in a scratch array overwritten by the next call. */
+    double[] flows(State obs) {
+        Lattice pred = _glass.predecessor();
+        int n = _spins.length;
+        for (int j = 0; j < n; j++) {
+            _spins[j] = obs.getSpin(j) ? 1 : -1;
+            _fields[j] = -_glass.getThreshold(j);
+        }
+        for (int i = 0; i < _inputs.length; i++) {
+            _inputs[i] = pred == _glass ? _spins[i] : pred.getSpin(i);
+        }
+        _glass._weights.multiplyTransposed(_inputs, _fields);
+        for (int j = 0; j < n; j++) {
+            _fields[j] = Math.exp(-_spins[j] * _fields[j]);
+        }
+        return _fields;
+    }
+
+    /** Adds everything OTHER has accumulated to me. */
+    void add(MPFGradient other) {
+        for (int i = 0; i < _gradient.length; i++) {
+            double[] row = _gradient[i];
+            double[] otherRow = other._gradient[i];
+            for (int j = 0; j < row.length; j++) {
+                row[j] += otherRow[j];
+            }
+        }
+        _objective += other._objective;
+        _count += other._count;
+    }
+
+    /** Returns the number of observations added. */
+    int count() {
+        return _count;
+    }
+
+    /** Returns the MPF objective over the observations added, scaled by
+     *  EPSILLON / count() as the gradient is. */
+    double objective() {
+        return _count == 0 ? 0 : _objective * EPSILLON / _count;
+    }
+
+    /** Returns a new matrix, of the dimensions of my lattice's weights,
+     *  holding the gradient of objective() over the observations added. */
+    double[][] gradient() {
+        double scale = _count == 0 ? 0 : EPSILLON / _count;
+        boolean tied = _glass.predecessor() == _glass;
+        double[][] result = new double[_gradient.length][];
+        for (int i = 0; i < _gradient.length; i++) {
+            result[i] = new double[_gradient[i].length];
+            for (int j = 0; j < result[i].length; j++) {
+                double g = _gradient[i][j];
+                if (tied) {
+                    g = i == j ? 0 : g + _gradient[j][i];
+                }
+                result[i][j] = g * scale;
+            }
+        }
+        return result;
+    }
+
+    /** Forgets every observation added. */
+    void clear() {
+        for (double[] row : _gradient) {
+            Arrays.fill(row, 0);
+        }
+        _objective = 0;
+        _count = 0;
+    }
+
+    /** The lattice whose weights I differentiate. */
+    private final Lattice _glass;
+    /** Scratch: spins of the predecessor, as +-1. */
+    private final double[] _inputs;
+    /** Scratch: spins of the observation, as +-1. */
+    private final double[] _spins;
+    /** Scratch: local fields of the observation, then its flows. */
+    private final double[] _fields;
+    /** Scratch: -s_j t_j for each spin j of the observation. */
+    private final double[] _flows;
+    /** Unscaled, unsymmetrized gradient sum. */
+    private final double[][] _gradient;
+    /** Unscaled objective sum. */
+    private double _objective;
+    /** Observations added. */
+    private int _count;
+}
@@ -0,0 +1,36 @@
+package spin_glass;
+
+import java.nio.ByteBuffer;
+
+/** A State viewing one record of a memory-mapped state file.
+ *  Spins are read in place from the packed words of the record; nothing
+ *  is copied.
+ *  @author Andrew Berger */
+class MappedState extends State {
+
+    /** A view of the NUMSPINS spins packed in BUFFER from byte OFFSET on.
+     *  BUFFER must be little-endian. */
+    MappedState(ByteBuffer buffer, int offset, int numSpins) {
+        super(numSpins);
+        _buffer = buffer;
+        _offset = offset;
+        _hash = computeHash();
+    }
+
+    @Override
+    public long word(int k) {
+        return _buffer.getLong(_offset + 8 * k);
+    }
+
+    @Override
+    public long hash64() {
+        return _hash;
+    }
+
+    /** The mapped segment holding my record. */
+    private final ByteBuffer _buffer;
+    /** Byte offset of my record within _buffer. */
+    private final int _offset;
+    /** My hash64(), computed once the record is in place. */
+    private final long _hash;
+}
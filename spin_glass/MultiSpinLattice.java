@@ -0,0 +1,341 @@
+package spin_glass;
+
+import java.util.Arrays;
+
+/** 64 independent replicas of a +-J InteractingLattice, multi-spin
+ *  coded: bit r of word i is spin i of replica r, set iff the spin is
+ *  +1. Every replica shares the couplings and thresholds of the glass
+ *  it was made from, and a sweep updates all 64 copies of a spin at
+ *  once with bitwise logic.
+ *
+ *  For each replica, the bonds of spin i that the spin currently
+ *  frustrates (J_ij s_i s_j < 0) are counted in bit-sliced counters:
+ *  word t of the count holds bit t of every replica's count. The energy
+ *  change of flipping spin i depends only on that count and the spin,
+ *  as dE = 2 (d_i - 2 k) - 2 theta_i s_i, so the replicas are split by
+ *  count and spin and each group is flipped with its own acceptance
+ *  probability. Those probabilities are tabulated as 32 bit fixed point
+ *  thresholds. Each replica draws a uniform 32 bit number, also bit
+ *  sliced, compared against its threshold from the most significant
+ *  bit down. Drawing stops once every replica's comparison is decided,
+ *  which takes about eight random words for 64 replicas.
+ *
+ *  Couplings must all be -1, 0 or +1. They are read from the glass's
+ *  Weighting, along with its thresholds, before the first sweep or
+ *  energy and again whenever the weights or thresholds change.
+ *  @author Andrew Berger */
+public class MultiSpinLattice {
+
+    /** The number of replicas I hold, one per bit of a long. */
+    public static final int REPLICAS = 64;
+
+    /** A new set of REPLICAS copies of GLASS, all starting in its current
+     *  state, at its current temperature, updated by the heat-bath rule
+     *  as GLASS itself is. */
+    MultiSpinLattice(InteractingLattice glass) {
+        _glass = glass;
+        _size = glass.latticeSize();
+        _words = new long[_size];
+        for (int i = 0; i < _size; i++) {
+            _words[i] = glass.getSpin(i) == 1 ? ~0L : 0;
+        }
+        _rand = new FastRandom(glass._rand.nextLong());
+        _rule = Rule.HEAT_BATH;
+        _temperature = glass._temperature;
+        _planes = new long[PRECISION];
+        _weightsVersion = -1;
+    }
+
+    /** The single spin update rules I can apply to every replica. */
+    public enum Rule {
+        /** Flip with probability min(1, exp(-dE / T)). */
+        METROPOLIS,
+        /** Set the spin from its conditional distribution: flip with
+         *  probability 1 / (1 + exp(dE / T)). */
+        HEAT_BATH
+    }
+
+    /** Makes my subsequent sweeps use RULE. */
+    public void setRule(Rule rule) {
+        _rule = rule;
+        _thresholdsTemp = Double.NaN;
+    }
+
+    /** Sets the temperature of every replica to TEMP >= 0. */
+    public void setTemperature(double temp) {
+        _temperature = temp;
+    }
+
+    /** Returns the temperature of my replicas. */
+    public double getTemperature() {
+        return _temperature;
+    }
+
+    /** Returns the number of spins in each replica. */
+    public int latticeSize() {
+        return _size;
+    }
+
+    /** Returns spin IND of REPLICA, 1 or -1. */
+    public int getSpin(int replica, int ind) {
+        return (int) (_words[ind] >>> replica & 1) * 2 - 1;
+    }
+
+    /** Returns the spins at IND of all my replicas, bit r set iff the
+     *  spin of replica r is +1. */
+    public long word(int ind) {
+        return _words[ind];
+    }
+
+    /** Returns the state of REPLICA. */
+    public State replica(int replica) {
+        long[] state = new long[State.numWords(_size)];
+        for (int i = 0; i < _size; i++) {
+            state[i >>> 6] |= (_words[i] >>> replica & 1) << i;
+        }
+        return new State(state, _size);
+    }
+
+    /** Sets the spins of REPLICA to STATE, which must be of my size. */
+    public void setReplica(int replica, State state) {
+        if (state.size() != _size) {
+            throw new StateException("state of " + state.size()
+                                     + " spins for a lattice of " + _size);
+        }
+        long bit = 1L << replica;
+        for (int i = 0; i < _size; i++) {
+            _words[i] = state.getSpin(i) ? _words[i] | bit
+                : _words[i] & ~bit;
+        }
+    }
+
+    /** Sets every spin of every replica uniformly at random. */
+    public void randomize() {
+        for (int i = 0; i < _size; i++) {
+            _words[i] = _rand.nextLong();
+        }
+    }
+
+    /** Returns the energy of REPLICA,
+     *  -sum_{i<j} J_ij s_i s_j + sum_i theta_i s_i. */
+    public double getEnergy(int replica) {
+        ensureCouplings();
+        long e = 0;
+        for (int i = 0; i < _size; i++) {
+            long si = _words[i] >>> replica & 1;
+            e += (2 * si - 1) * _thresholds[i];
+            for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                int j = _columns[k];
+                if (j > i) {
+                    long frustrated = (si ^ _words[j] >>> replica
+                                       ^ _negative[k]) & 1;
+                    e += 2 * frustrated - 1;
+                }
+            }
+        }
+        return e;
+    }
+
+    /** Updates every spin of every replica once, in index order, at my
+     *  temperature by my rule. Returns the number of spins that changed,
+     *  over all replicas. */
+    public long sweep() {
+        ensureCouplings();
+        ensureThresholds();
+        long flips = 0;
+        for (int i = 0; i < _size; i++) {
+            long flip = flips(i);
+            _words[i] ^= flip;
+            flips += Long.bitCount(flip);
+        }
+        SpinGlassMetrics.get().recordUpdates((long) REPLICAS * _size, flips);
+        return flips;
+    }
+
+    /** Returns the mask of replicas whose spin IND is to flip. */
+    private long flips(int ind) {
+        long s = _words[ind];
+        long[] counts = _counts;
+        Arrays.fill(counts, 0);
+        for (int k = _rowStart[ind]; k < _rowStart[ind + 1]; k++) {
+            long carry = s ^ _words[_columns[k]] ^ _negative[k];
+            for (int t = 0; carry != 0; t++) {
+                long sum = counts[t] ^ carry;
+                carry &= counts[t];
+                counts[t] = sum;
+            }
+        }
+        int degree = _rowStart[ind + 1] - _rowStart[ind];
+        int theta = _thresholds[ind];
+        _planesDrawn = 0;
+        long flip = 0;
+        for (int frustrated = 0; frustrated <= degree; frustrated++) {
+            long group = ~0L;
+            for (int t = 0; t < counts.length; t++) {
+                group &= (frustrated >>> t & 1) != 0 ? counts[t] : ~counts[t];
+            }
+            if (group == 0) {
+                continue;
+            }
+            int half = degree - 2 * frustrated + _offset;
+            flip |= accept(group & s, _acceptance[half - theta]);
+            flip |= accept(group & ~s, _acceptance[half + theta]);
+        }
+        return flip;
+    }
+
+    /** Returns the replicas of GROUP that accept a flip with probability
+     *  THRESHOLD / 2^32, each deciding by its own bit sliced uniform
+     *  draw. The draws are shared by the disjoint groups of one spin. */
+    private long accept(long group, long threshold) {
+        if (group == 0 || threshold == 0) {
+            return 0;
+        }
+        if (threshold == ALWAYS) {
+            return group;
+        }
+        long less = 0;
+        long equal = group;
+        for (int t = 0; equal != 0 && t < PRECISION; t++) {
+            if (t == _planesDrawn) {
+                _planes[_planesDrawn++] = _rand.nextLong();
+            }
+            long u = _planes[t];
+            if ((threshold >>> (PRECISION - 1 - t) & 1) != 0) {
+                less |= equal & ~u;
+                equal &= u;
+            } else {
+                equal &= ~u;
+            }
+        }
+        return less;
+    }
+
+    /** Rereads my couplings and thresholds if my glass's weights or
+     *  thresholds have changed since I last read them. */
+    private void ensureCouplings() {
+        Weighting weights = _glass._weights;
+        if (weights.version() == _weightsVersion
+            && _glass.thresholdsVersion() == _thresholdsVersion) {
+            return;
+        }
+        int[] rowStart = new int[_size + 1];
+        for (int i = 0; i < _size; i++) {
+            for (int p = 0; p < weights.degree(i); p++) {
+                if (weights.get(i, weights.neighbor(i, p)) != 0) {
+                    rowStart[i + 1] += 1;
+                }
+            }
+            rowStart[i + 1] += rowStart[i];
+        }
+        int[] columns = new int[rowStart[_size]];
+        long[] negative = new long[columns.length];
+        int maxDegree = 0;
+        int maxTheta = 0;
+        int k = 0;
+        for (int i = 0; i < _size; i++) {
+            for (int p = 0; p < weights.degree(i); p++) {
+                int j = weights.neighbor(i, p);
+                double w = weights.get(i, j);
+                if (w == 0) {
+                    continue;
+                }
+                if (Math.abs(w) != 1) {
+                    throw new StateException("coupling " + w + " between "
+                                             + i + " and " + j
+                                             + " is not +-1");
+                }
+                columns[k] = j;
+                negative[k++] = w < 0 ? ~0L : 0;
+            }
+            maxDegree = Math.max(maxDegree, rowStart[i + 1] - rowStart[i]);
+        }
+        int[] thresholds = new int[_size];
+        for (int i = 0; i < _size; i++) {
+            thresholds[i] = _glass.getThreshold(i);
+            maxTheta = Math.max(maxTheta, Math.abs(thresholds[i]));
+        }
+        _rowStart = rowStart;
+        _columns = columns;
+        _negative = negative;
+        _thresholds = thresholds;
+        _counts = new long[32 - Integer.numberOfLeadingZeros(maxDegree)];
+        _offset = maxDegree + maxTheta;
+        _acceptance = new long[2 * _offset + 1];
+        _thresholdsTemp = Double.NaN;
+        _weightsVersion = weights.version();
+        _thresholdsVersion = _glass.thresholdsVersion();
+    }
+
+    /** Retabulates the acceptance threshold of every energy change if
+     *  my temperature or rule has changed. Entry h + _offset is for
+     *  dE = 2 h. */
+    private void ensureThresholds() {
+        if (_thresholdsTemp == _temperature) {
+            return;
+        }
+        for (int h = -_offset; h <= _offset; h++) {
+            double p = probability(2 * h);
+            _acceptance[h + _offset] =
+                Math.max(0, Math.min(ALWAYS, Math.round(p * ALWAYS)));
+        }
+        _thresholdsTemp = _temperature;
+    }
+
+    /** Returns the probability that my rule flips a spin whose flip
+     *  changes the energy by DE. */
+    private double probability(double dE) {
+        if (_temperature == 0) {
+            if (dE == 0) {
+                return _rule == Rule.METROPOLIS ? 1 : .5;
+            }
+            return dE < 0 ? 1 : 0;
+        }
+        if (_rule == Rule.METROPOLIS) {
+            return dE <= 0 ? 1 : Math.exp(-dE / _temperature);
+        }
+        return 1 / (1 + Math.exp(dE / _temperature));
+    }
+
+    /** Bits of precision of the acceptance thresholds. */
+    private static final int PRECISION = 32;
+    /** Threshold of a certain flip, 2^PRECISION. */
+    private static final long ALWAYS = 1L << PRECISION;
+
+    /** The glass whose couplings and thresholds I share. */
+    private final InteractingLattice _glass;
+    private final int _size;
+    /** Spins of every replica: bit r of _words[i] is spin i of replica
+     *  r, set iff +1. */
+    private final long[] _words;
+    private final FastRandom _rand;
+    private Rule _rule;
+    private double _temperature;
+
+    /** Non-zero couplings in CSR form: the neighbors of spin i are
+     *  _columns[_rowStart[i]] ... _columns[_rowStart[i + 1] - 1]. */
+    private int[] _rowStart;
+    private int[] _columns;
+    /** All ones where the coupling in _columns is -1, otherwise 0. */
+    private long[] _negative;
+    private int[] _thresholds;
+    /** Weights and thresholds versions my couplings and thresholds
+     *  were read at. */
+    private long _weightsVersion;
+    private long _thresholdsVersion;
+
+    /** Acceptance threshold, out of ALWAYS, of each energy change. */
+    private long[] _acceptance;
+    /** Entry of _acceptance for dE = 0: the largest degree plus the
+     *  largest threshold magnitude. */
+    private int _offset;
+    /** Temperature _acceptance was tabulated at, NaN if stale. */
+    private double _thresholdsTemp;
+
+    /** Bit sliced count of frustrated bonds, least significant first. */
+    private long[] _counts;
+    /** Random words drawn for the current spin, most significant bit of
+     *  every replica's uniform first. */
+    private final long[] _planes;
+    private int _planesDrawn;
+}
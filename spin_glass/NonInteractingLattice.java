@@ -1,9 +1,11 @@
 package spin_glass;
 
-import java.util.Random;
 
 /** A lattice of non-interacting spins.
  *  AKA a single layer in an RBM 
+ *  No spin's field depends on another of mine, so a whole layer is
+ *  updated at once from one blocked matrix-vector product, both up
+ *  from my predecessor and back down to it.
  *  @author Andrew Berger*/
 public class NonInteractingLattice extends Lattice {
 
@@ -11,32 +13,54 @@ public class NonInteractingLattice extends Lattice {
      *  Initially all spins set to -1. */
     NonInteractingLattice(int numSpins, Lattice predecessor) {
         _predecessor = predecessor;
-        _weights = new Weighting(predecessor, this);
         _size = numSpins;
-        _lattice = new Spin[numSpins];
-        for (int i = 0; i < numSpins; i++) {
-            _lattice[i] = new Spin(false);
-        }
-        _rand = new Random();
+        _lattice = new PackedSpins(numSpins);
+        _weights = new Weighting(predecessor, this);
+        _rand = new FastRandom();
     }
 
-    @Override
-    double energyDiff(int ind) {
-        double e = 0;
-        for (int i = 0; i < predecessor().latticeSize() && i != ind; i++) {
-            e += _weights.get(i, ind) * predecessor().getSpin(i) 
-                + _weights.get(i, ind) * predecessor().getSpin(i);
-        }
-        e = e / 2;
-        e -= getThreshold(ind);
-        return e;
+    /** A new non-interacting lattice with NUMSPINS, where spin i of
+     *  PREDECESSOR is coupled only to the spins in NEIGHBORS[i], whose
+     *  weights are stored sparsely.
+     *  Initially all spins set to -1. */
+    NonInteractingLattice(int numSpins, Lattice predecessor,
+                          int[][] neighbors) {
+        _predecessor = predecessor;
+        _size = numSpins;
+        _lattice = new PackedSpins(numSpins);
+        _weights = new Weighting(predecessor, this, neighbors);
+        _rand = new FastRandom();
     }
 
     @Override 
     public void converge() {
-        for (int i = 0; i < latticeSize(); i++) {
-            updateSpin(i);
+        updateLayer();
+    }
+
+    /** Resamples every spin of my predecessor from the fields my current
+     *  spins induce on it, W s - theta, at my temperature: the downward
+     *  half of a Gibbs step. */
+    public void reconstruct() {
+        Lattice pred = predecessor();
+        if (_downFields == null) {
+            _spins = new double[latticeSize()];
+            _downFields = new double[pred.latticeSize()];
+            _downWords = new long[State.numWords(pred.latticeSize())];
+        }
+        for (int j = 0; j < _spins.length; j++) {
+            _spins[j] = getSpin(j);
+        }
+        for (int i = 0; i < _downFields.length; i++) {
+            _downFields[i] = -pred.getThreshold(i);
+        }
+        _weights.multiply(_spins, _downFields);
+        sampleWords(_downFields, _downWords);
+        long flips = 0;
+        for (int k = 0; k < _downWords.length; k++) {
+            flips += Long.bitCount(pred._lattice.word(k) ^ _downWords[k]);
         }
+        SpinGlassMetrics.get().recordUpdates(_downFields.length, flips);
+        pred.setWords(_downWords);
     }
 
     @Override
@@ -46,4 +70,10 @@ public class NonInteractingLattice extends Lattice {
 
     
     private Lattice _predecessor;
+    /** Scratch: my spins, as +-1. */
+    private double[] _spins;
+    /** Scratch: fields on my predecessor's spins. */
+    private double[] _downFields;
+    /** Scratch: predecessor spins sampled by reconstruct. */
+    private long[] _downWords;
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package spin_glass;
+
+import java.util.Iterator;
+
+/** A stream of observations for MPF, read one at a time so that only
+ *  the observations currently in use need be held in memory. Files,
+ *  generators and in-memory collections can all be sources.
+ *  @author Andrew Berger */
+public interface ObservationSource {
+
+    /** Returns the next observation, or null once I am exhausted. */
+    State next();
+
+    /** Starts me over from my first observation. */
+    void rewind();
+
+    /** Returns a source over OBSERVATIONS, which is iterated afresh on
+     *  every rewind, so it may just as well generate its states lazily
+     *  as hold them. */
+    static ObservationSource of(final Iterable<State> observations) {
+        return new ObservationSource() {
+            @Override
+            public State next() {
+                if (_iter == null) {
+                    _iter = observations.iterator();
+                }
+                return _iter.hasNext() ? _iter.next() : null;
+            }
+
+            @Override
+            public void rewind() {
+                _iter = null;
+            }
+
+            private Iterator<State> _iter;
+        };
+    }
+}
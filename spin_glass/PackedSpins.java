@@ -0,0 +1,81 @@
+package spin_glass;
+
+/** Bit-packed storage for the spins and thresholds of a lattice.
+ *  Spin IND lives in bit IND % 64 of word IND / 64 and the bit is set
+ *  iff the spin is activated. Thresholds are kept in a parallel
+ *  primitive array, so no per-spin objects are ever allocated.
+ *  @author Andrew Berger */
+class PackedSpins {
+
+    /** A new store holding NUMSPINS spins.
+     *  Initially all spins set to -1 with threshold 0. */
+    PackedSpins(int numSpins) {
+        _size = numSpins;
+        _words = new long[(numSpins + 63) >>> 6];
+        _thresholds = new int[numSpins];
+    }
+
+    /** Returns the number of spins I hold. */
+    int size() {
+        return _size;
+    }
+
+    /** Returns 1 if the spin at IND is activated, otherwise -1. */
+    int get(int ind) {
+        return ((int) (_words[ind >>> 6] >>> ind) & 1) * 2 - 1;
+    }
+
+    /** Returns 1 if the spin at IND is activated, otherwise 0. */
+    int getBool(int ind) {
+        return (int) (_words[ind >>> 6] >>> ind) & 1;
+    }
+
+    /** Sets the spin at IND to 1 iff ACTIVATED. */
+    void set(int ind, boolean activated) {
+        if (activated) {
+            _words[ind >>> 6] |= 1L << ind;
+        } else {
+            _words[ind >>> 6] &= ~(1L << ind);
+        }
+    }
+
+    /** Flips the spin at IND. */
+    void flip(int ind) {
+        _words[ind >>> 6] ^= 1L << ind;
+    }
+
+    /** Returns the threshold of the spin at IND. */
+    int getThreshold(int ind) {
+        return _thresholds[ind];
+    }
+
+    /** Sets the threshold of the spin at IND to THRESHOLD. */
+    void setThreshold(int ind, int threshold) {
+        _thresholds[ind] = threshold;
+    }
+
+    /** Returns the number of 64 bit words backing my spins. */
+    int numWords() {
+        return _words.length;
+    }
+
+    /** Returns word K of my packed spins.
+     *  Bits past size() are always clear. */
+    long word(int k) {
+        return _words[k];
+    }
+
+    /** Sets word K of my packed spins to WORD, clearing any bits of it
+     *  past size(). */
+    void setWord(int k, long word) {
+        int rest = _size - (k << 6);
+        _words[k] = rest >= 64 ? word : word & ~(-1L << rest);
+    }
+
+    /** Packed spins, indexed by LSD. */
+    private final long[] _words;
+    /** Threshold over which each spin activates. 0 by default. */
+    private final int[] _thresholds;
+    /** Number of spins held. */
+    private final int _size;
+}
@@ -0,0 +1,193 @@
+package spin_glass;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Sweeps an InteractingLattice in parallel, one color class at a time.
+ *  The spins are greedily colored so that no two spins of a color are
+ *  coupled (on a grid in row-major order this is the checkerboard).
+ *  Spins of one color then see fixed local fields, so they can all be
+ *  updated at once: each is an exact heat-bath update given the rest, and
+ *  visiting the colors in turn preserves detailed balance.
+ *
+ *  The lattice is cut into blocks of BLOCK spins, aligned on the words of
+ *  its packed spins, so no two workers ever write the same word. After a
+ *  color is updated, each block recomputes the fields of its spins of
+ *  the other colors. Every block draws from its own random stream, so a
+ *  sweep is reproducible whatever the number of threads.
+ *
+ *  Meant for locally connected (sparse) glasses: a densely coupled
+ *  lattice needs one color per spin and gains nothing.
+ *  @author Andrew Berger */
+class ParallelSweeper {
+
+    /** A sweeper for GLASS, running its workers in POOL. */
+    ParallelSweeper(InteractingLattice glass, ForkJoinPool pool) {
+        _glass = glass;
+        _pool = pool;
+        _numBlocks = (glass.latticeSize() + BLOCK - 1) / BLOCK;
+        _streams = new FastRandom[_numBlocks];
+        FastRandom seed = new FastRandom(glass._rand.nextLong());
+        for (int b = 0; b < _numBlocks; b++) {
+            _streams[b] = seed.split();
+        }
+        _flips = new int[_numBlocks];
+        color();
+    }
+
+    /** Returns the random stream of each block, for checkpointing. */
+    FastRandom[] streams() {
+        return _streams;
+    }
+
+    /** Returns the number of independent sets my spins are split into. */
+    int numColors() {
+        return _numColors;
+    }
+
+    /** Updates every spin of my lattice once, at its current temperature.
+     *  Returns the number of spins that changed. */
+    int sweep() {
+        if (_glass._weights.version() != _coloredVersion
+            && !_glass._weights.isSparse()) {
+            color();
+        }
+        _glass.ensureFields();
+        _glass.ensureAcceptance();
+        int flips = 0;
+        for (int c = 0; c < _numColors; c++) {
+            _color = c;
+            _pool.invoke(new Phase(true, 0, _numBlocks));
+            int colorFlips = 0;
+            for (int b = 0; b < _numBlocks; b++) {
+                colorFlips += _flips[b];
+            }
+            if (colorFlips > 0) {
+                _pool.invoke(new Phase(false, 0, _numBlocks));
+            }
+            flips += colorFlips;
+        }
+        _glass.spinsUpdated();
+        return flips;
+    }
+
+    /** Greedily colors the interaction graph of my lattice, in index
+     *  order, and groups the spins of each color by block. A sparse
+     *  lattice's topology is colored once and for all; a dense one's
+     *  graph is that of its non-zero weights. */
+    private void color() {
+        int n = _glass.latticeSize();
+        Topology topology = _glass._weights.topology();
+        if (topology == null) {
+            int[][] neighbors = new int[n][];
+            for (int i = 0; i < n; i++) {
+                neighbors[i] = _glass._weights.neighbors(i);
+            }
+            topology = new Topology(neighbors);
+        }
+        int[] colors = topology.colors();
+        _numColors = topology.numColors();
+        _members = new int[_numColors * _numBlocks][];
+        int[] counts = new int[_numColors * _numBlocks];
+        for (int i = 0; i < n; i++) {
+            counts[colors[i] * _numBlocks + i / BLOCK] += 1;
+        }
+        for (int k = 0; k < counts.length; k++) {
+            _members[k] = new int[counts[k]];
+            counts[k] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int k = colors[i] * _numBlocks + i / BLOCK;
+            _members[k][counts[k]++] = i;
+        }
+        _colors = colors;
+        _coloredVersion = _glass._weights.version();
+    }
+
+    /** Updates the spins of the current color in block B.
+     *  Only the bits of block B are written. */
+    private void updateBlock(int b) {
+        Lattice glass = _glass;
+        FastRandom rand = _streams[b];
+        boolean zeroTemp = glass._temperature == 0;
+        int flips = 0;
+        for (int i : _members[_color * _numBlocks + b]) {
+            double field = glass.localField(i);
+            boolean on = zeroTemp ? field > 0
+                : rand.nextDouble() <= glass.probOn(field);
+            if ((glass._lattice.getBool(i) == 1) != on) {
+                glass._lattice.flip(i);
+                flips += 1;
+            }
+        }
+        _flips[b] = flips;
+    }
+
+    /** Recomputes the fields of the spins in block B not of the
+     *  current color. Only the fields of block B are written. */
+    private void refreshBlock(int b) {
+        int end = Math.min((b + 1) * BLOCK, _glass.latticeSize());
+        for (int i = b * BLOCK; i < end; i++) {
+            if (_colors[i] != _color) {
+                _glass.refreshField(i);
+            }
+        }
+    }
+
+    /** One half of a color update over blocks [START, END): either the
+     *  spin updates themselves or the field refresh that follows. */
+    private class Phase extends RecursiveAction {
+
+        Phase(boolean update, int start, int end) {
+            _update = update;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (_end - _start <= 1) {
+                if (_end == _start) {
+                    return;
+                } else if (_update) {
+                    updateBlock(_start);
+                } else {
+                    refreshBlock(_start);
+                }
+                return;
+            }
+            int mid = (_start + _end) >>> 1;
+            invokeAll(new Phase(_update, _start, mid),
+                      new Phase(_update, mid, _end));
+        }
+
+        /** True for the spin update, false for the field refresh. */
+        private final boolean _update;
+        private final int _start;
+        private final int _end;
+    }
+
+    /** Spins per block. A multiple of 64 so blocks never share a word. */
+    static final int BLOCK = 4096;
+
+    /** The lattice I sweep. */
+    private final InteractingLattice _glass;
+    /** Pool running my workers. */
+    private final ForkJoinPool _pool;
+    /** Number of blocks my lattice is cut into. */
+    private final int _numBlocks;
+    /** Random stream of each block. */
+    private final FastRandom[] _streams;
+    /** Spins flipped in each block during the current color update. */
+    private final int[] _flips;
+    /** Color of each spin. */
+    private int[] _colors;
+    /** Spins of color c in block b, at index c * _numBlocks + b. */
+    private int[][] _members;
+    /** Number of colors used. */
+    private int _numColors;
+    /** Color currently being updated. */
+    private int _color;
+    /** Weighting version my coloring was computed against. */
+    private long _coloredVersion;
+}
@@ -0,0 +1,155 @@
+package spin_glass;
+
+/** A batch of persistent Gibbs chains over an RBM layer and its
+ *  predecessor, updated together.
+ *  The spins of all chains are held as one K x N block of +-1 doubles
+ *  per layer, a chain per row, so each half step is one matrix-matrix
+ *  pass over the weights in which every block of weights loaded is
+ *  applied to all chains at once. The chains persist between calls to
+ *  step, as persistent contrastive divergence needs.
+ *  The weights, thresholds, temperature and PRNG are those of the layer,
+ *  and are read afresh on every step. The layer's own spins are left
+ *  alone.
+ *  @author Andrew Berger */
+public class PersistentChains {
+
+    /** NUMCHAINS new chains over LAYER and its predecessor, started from
+     *  uniformly random spins. */
+    public PersistentChains(NonInteractingLattice layer, int numChains) {
+        if (numChains < 1) {
+            throw new StateException("need at least one chain");
+        }
+        _layer = layer;
+        _chains = numChains;
+        _visible = new double[layer.predecessor().latticeSize() * numChains];
+        _hidden = new double[layer.latticeSize() * numChains];
+        _visibleFields = new double[_visible.length];
+        _hiddenFields = new double[_hidden.length];
+        for (int k = 0; k < _visible.length; k++) {
+            _visible[k] = layer._rand.nextBoolean() ? 1 : -1;
+        }
+        for (int k = 0; k < _hidden.length; k++) {
+            _hidden[k] = layer._rand.nextBoolean() ? 1 : -1;
+        }
+    }
+
+    /** Returns the number of chains I run. */
+    public int numChains() {
+        return _chains;
+    }
+
+    /** Runs STEPS alternating Gibbs steps on every chain: the layer is
+     *  sampled given the predecessor, then the predecessor given the
+     *  layer. */
+    public void step(int steps) {
+        Lattice pred = _layer.predecessor();
+        long flips = 0;
+        for (int s = 0; s < steps; s++) {
+            fill(_hiddenFields, _layer);
+            _layer._weights.multiplyTransposed(_visible, _chains,
+                                               _hiddenFields);
+            flips += sample(_hiddenFields, _hidden);
+            fill(_visibleFields, pred);
+            _layer._weights.multiply(_hidden, _chains, _visibleFields);
+            flips += sample(_visibleFields, _visible);
+        }
+        SpinGlassMetrics.get()
+            .recordUpdates((long) steps * (_hidden.length + _visible.length),
+                           flips);
+    }
+
+    /** Returns the state of the predecessor in chain CHAIN. */
+    public State visibleState(int chain) {
+        return state(_visible, _layer.predecessor().latticeSize(), chain);
+    }
+
+    /** Returns the state of the layer in chain CHAIN. */
+    public State hiddenState(int chain) {
+        return state(_hidden, _layer.latticeSize(), chain);
+    }
+
+    /** Sets the predecessor spins of chain CHAIN to STATE. */
+    public void setVisible(int chain, State state) {
+        int size = _layer.predecessor().latticeSize();
+        for (int i = 0; i < size; i++) {
+            _visible[chain * size + i] = state.getSpin(i) ? 1 : -1;
+        }
+    }
+
+    /** Returns the model correlations <v_i h_j> averaged over my chains,
+     *  in the shape of the layer's weights: the negative phase of a
+     *  contrastive divergence gradient. */
+    public double[][] correlations() {
+        int rows = _layer.predecessor().latticeSize();
+        int cols = _layer.latticeSize();
+        double[][] result = new double[rows][cols];
+        for (int c = 0; c < _chains; c++) {
+            for (int i = 0; i < rows; i++) {
+                double vi = _visible[c * rows + i];
+                double[] row = result[i];
+                for (int j = 0; j < cols; j++) {
+                    row[j] += vi * _hidden[c * cols + j];
+                }
+            }
+        }
+        for (double[] row : result) {
+            for (int j = 0; j < cols; j++) {
+                row[j] /= _chains;
+            }
+        }
+        return result;
+    }
+
+    /** Sets FIELDS, a field per spin of GLASS in every chain, to minus
+     *  the thresholds of GLASS. */
+    private void fill(double[] fields, Lattice glass) {
+        int size = glass.latticeSize();
+        for (int i = 0; i < size; i++) {
+            fields[i] = -glass.getThreshold(i);
+        }
+        for (int c = 1; c < _chains; c++) {
+            System.arraycopy(fields, 0, fields, c * size, size);
+        }
+    }
+
+    /** Samples every entry of SPINS from the matching entry of FIELDS
+     *  at the layer's temperature. Returns the number that changed. */
+    private int sample(double[] fields, double[] spins) {
+        boolean zeroTemp = _layer._temperature == 0;
+        int flips = 0;
+        for (int k = 0; k < spins.length; k++) {
+            boolean on = zeroTemp ? fields[k] > 0
+                : _layer._rand.nextDouble() <= _layer.probOn(fields[k]);
+            double spin = on ? 1 : -1;
+            if (spin != spins[k]) {
+                flips += 1;
+            }
+            spins[k] = spin;
+        }
+        return flips;
+    }
+
+    /** Returns chain CHAIN of the SIZE spins in SPINS as a State. */
+    private State state(double[] spins, int size, int chain) {
+        long[] words = new long[State.numWords(size)];
+        for (int i = 0; i < size; i++) {
+            if (spins[chain * size + i] > 0) {
+                words[i >>> 6] |= 1L << i;
+            }
+        }
+        return new State(words, size);
+    }
+
+    /** The layer whose weights and parameters I sample with. */
+    private final NonInteractingLattice _layer;
+    /** Number of chains. */
+    private final int _chains;
+    /** Predecessor spins, chain after chain. */
+    private final double[] _visible;
+    /** Layer spins, chain after chain. */
+    private final double[] _hidden;
+    /** Scratch: fields on the predecessor spins of every chain. */
+    private final double[] _visibleFields;
+    /** Scratch: fields on the layer spins of every chain. */
+    private final double[] _hiddenFields;
+}
@@ -0,0 +1,263 @@
+package spin_glass;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Parallel tempering (replica exchange) over copies of an
+ *  InteractingLattice.
+ *  Every replica shares the Weighting of the original glass and sits at
+ *  its own temperature of an ascending ladder. Replicas are swept
+ *  concurrently, then neighboring temperatures attempt to exchange their
+ *  replicas, accepted with probability
+ *  min(1, exp((1/T_k - 1/T_k+1) (E_k - E_k+1))) from the cached energies.
+ *
+ *  Each replica carries a direction label, set when it last touched the
+ *  coldest or hottest temperature, which gives the round trip count and
+ *  the fraction f(T) of replicas heading up at each temperature. The
+ *  ladder can then be re-spaced by the feedback rule of Katzgraber,
+ *  Trebst, Huse and Troyer, placing temperatures with density
+ *  proportional to sqrt(df/dT / dT) to minimize round trip time.
+ *  @author Andrew Berger */
+public class ReplicaExchange {
+
+    /** A new replica exchange over copies of GLASS, one at each of
+     *  TEMPERATURES (ascending, all > 0), swept concurrently on POOL.
+     *  Every replica starts in GLASS's current state. */
+    ReplicaExchange(InteractingLattice glass, double[] temperatures,
+                    ForkJoinPool pool) {
+        int m = temperatures.length;
+        if (m < 2) {
+            throw new StateException("need at least two temperatures");
+        }
+        for (int k = 0; k < m; k++) {
+            if (temperatures[k] <= 0
+                || (k > 0 && temperatures[k] <= temperatures[k - 1])) {
+                throw new StateException("temperatures must be positive"
+                                         + " and ascending");
+            }
+        }
+        _pool = pool;
+        _temperatures = temperatures.clone();
+        _rand = new FastRandom(glass._rand.nextLong());
+        _replicas = new InteractingLattice[m];
+        _replicaAt = new int[m];
+        _direction = new int[m];
+        for (int r = 0; r < m; r++) {
+            InteractingLattice replica =
+                new InteractingLattice(glass.latticeSize(), glass._weights);
+            for (int i = 0; i < glass.latticeSize(); i++) {
+                replica.setThreshold(i, glass.getThreshold(i));
+                replica.setSpin(i, glass.getSpin(i) == 1);
+            }
+            replica._rand = new FastRandom(_rand.nextLong());
+            replica.setTemperature(_temperatures[r]);
+            _replicas[r] = replica;
+            _replicaAt[r] = r;
+        }
+        _attempts = new long[m - 1];
+        _accepts = new long[m - 1];
+        _up = new long[m];
+        _down = new long[m];
+    }
+
+    /** Returns the number of replicas (and temperatures) I hold. */
+    public int numReplicas() {
+        return _replicas.length;
+    }
+
+    /** Returns a copy of my temperature ladder, ascending. */
+    public double[] getTemperatures() {
+        return _temperatures.clone();
+    }
+
+    /** Returns the replica currently at the Kth temperature. */
+    public InteractingLattice replicaAt(int k) {
+        return _replicas[_replicaAt[k]];
+    }
+
+    /** Sweeps every replica SWEEPS times at its temperature, concurrently,
+     *  then attempts one exchange between every other pair of
+     *  neighboring temperatures, alternating which pairs between calls. */
+    public void step(int sweeps) {
+        _pool.invoke(new Sweeps(sweeps, 0, _replicas.length));
+        for (int k = _parity; k < _replicas.length - 1; k += 2) {
+            attemptSwap(k);
+        }
+        _parity ^= 1;
+        recordDirections();
+        SpinGlassMetrics.get().observe(replicaAt(0));
+    }
+
+    /** Returns the fraction of attempted exchanges between temperatures
+     *  K and K + 1 that were accepted, or 0 if none were attempted. */
+    public double acceptanceRate(int k) {
+        return _attempts[k] == 0 ? 0 : (double) _accepts[k] / _attempts[k];
+    }
+
+    /** Returns the number of times a replica has travelled from the
+     *  hottest temperature back down to the coldest. */
+    public long roundTrips() {
+        return _roundTrips;
+    }
+
+    /** Returns the fraction of labeled replicas seen at temperature K
+     *  that were heading from the coldest to the hottest temperature. */
+    public double upFraction(int k) {
+        long total = _up[k] + _down[k];
+        return total == 0 ? 0 : (double) _up[k] / total;
+    }
+
+    /** Re-spaces the interior of my ladder from the up fractions gathered
+     *  so far, keeping the coldest and hottest temperatures, then clears
+     *  all statistics. Returns false, leaving the ladder alone, if some
+     *  temperature has not yet been visited by a labeled replica. */
+    public boolean optimizeLadder() {
+        int m = _temperatures.length;
+        double[] f = new double[m];
+        for (int k = 0; k < m; k++) {
+            if (_up[k] + _down[k] == 0) {
+                return false;
+            }
+            f[k] = upFraction(k);
+        }
+        double[] density = new double[m - 1];
+        double total = 0;
+        for (int k = 0; k < m - 1; k++) {
+            double dT = _temperatures[k + 1] - _temperatures[k];
+            double dfdT = Math.max(f[k] - f[k + 1], MIN_DF) / dT;
+            density[k] = Math.sqrt(dfdT / dT);
+            total += density[k] * dT;
+        }
+        double[] ladder = new double[m];
+        ladder[0] = _temperatures[0];
+        ladder[m - 1] = _temperatures[m - 1];
+        int k = 0;
+        double below = 0;
+        for (int t = 1; t < m - 1; t++) {
+            double target = total * t / (m - 1);
+            double dT = _temperatures[k + 1] - _temperatures[k];
+            while (k < m - 2 && below + density[k] * dT < target) {
+                below += density[k] * dT;
+                k += 1;
+                dT = _temperatures[k + 1] - _temperatures[k];
+            }
+            ladder[t] = _temperatures[k] + (target - below) / density[k];
+        }
+        _temperatures = ladder;
+        for (int slot = 0; slot < m; slot++) {
+            replicaAt(slot).setTemperature(_temperatures[slot]);
+        }
+        resetStatistics();
+        return true;
+    }
+
+    /** Clears the exchange, round trip and direction statistics. */
+    public void resetStatistics() {
+        Arrays.fill(_attempts, 0);
+        Arrays.fill(_accepts, 0);
+        Arrays.fill(_up, 0);
+        Arrays.fill(_down, 0);
+        _roundTrips = 0;
+    }
+
+    /** Attempts to exchange the replicas at temperatures K and K + 1. */
+    private void attemptSwap(int k) {
+        InteractingLattice cold = replicaAt(k);
+        InteractingLattice hot = replicaAt(k + 1);
+        double delta = (1 / _temperatures[k] - 1 / _temperatures[k + 1])
+            * (cold.getEnergy() - hot.getEnergy());
+        _attempts[k] += 1;
+        boolean accepted = delta >= 0 || _rand.nextDouble() < Math.exp(delta);
+        SpinGlassMetrics.get().recordSwap(accepted);
+        if (accepted) {
+            _accepts[k] += 1;
+            int r = _replicaAt[k];
+            _replicaAt[k] = _replicaAt[k + 1];
+            _replicaAt[k + 1] = r;
+            cold.setTemperature(_temperatures[k + 1]);
+            hot.setTemperature(_temperatures[k]);
+        }
+    }
+
+    /** Updates each replica's direction label at the ends of the ladder
+     *  and tallies the labels seen at every temperature. */
+    private void recordDirections() {
+        int m = _replicas.length;
+        int bottom = _replicaAt[0];
+        if (_direction[bottom] == DOWN) {
+            _roundTrips += 1;
+        }
+        _direction[bottom] = UP;
+        _direction[_replicaAt[m - 1]] = DOWN;
+        for (int k = 0; k < m; k++) {
+            int d = _direction[_replicaAt[k]];
+            if (d == UP) {
+                _up[k] += 1;
+            } else if (d == DOWN) {
+                _down[k] += 1;
+            }
+        }
+    }
+
+    /** Sweeps the replicas [START, END) concurrently. */
+    private class Sweeps extends RecursiveAction {
+
+        Sweeps(int sweeps, int start, int end) {
+            _sweeps = sweeps;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (_end - _start == 1) {
+                for (int s = 0; s < _sweeps; s++) {
+                    _replicas[_start].sweep();
+                }
+                return;
+            }
+            int mid = (_start + _end) >>> 1;
+            invokeAll(new Sweeps(_sweeps, _start, mid),
+                      new Sweeps(_sweeps, mid, _end));
+        }
+
+        private final int _sweeps;
+        private final int _start;
+        private final int _end;
+    }
+
+    /** Direction label of a replica last seen at the coldest temperature. */
+    private static final int UP = 1;
+    /** Direction label of a replica last seen at the hottest temperature. */
+    private static final int DOWN = -1;
+    /** Floor on the drop in up fraction across an interval, so that
+     *  intervals the statistics cannot resolve still get some density. */
+    private static final double MIN_DF = 1e-6;
+
+    /** The replicas, in creation order. */
+    private final InteractingLattice[] _replicas;
+    /** Pool the replicas are swept on. */
+    private final ForkJoinPool _pool;
+    /** PRNG for exchange decisions. */
+    private final Random _rand;
+    /** Temperature ladder, ascending. */
+    private double[] _temperatures;
+    /** Index of the replica at each temperature. */
+    private final int[] _replicaAt;
+    /** Direction label of each replica: UP, DOWN or 0 if unlabeled. */
+    private final int[] _direction;
+    /** Exchange attempts between temperatures k and k + 1. */
+    private final long[] _attempts;
+    /** Accepted exchanges between temperatures k and k + 1. */
+    private final long[] _accepts;
+    /** Times a replica labeled UP was seen at each temperature. */
+    private final long[] _up;
+    /** Times a replica labeled DOWN was seen at each temperature. */
+    private final long[] _down;
+    /** Completed returns from the hottest to the coldest temperature. */
+    private long _roundTrips;
+    /** 0 to attempt pairs (0,1), (2,3)..., 1 for (1,2), (3,4)... */
+    private int _parity;
+}
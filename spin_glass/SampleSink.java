@@ -0,0 +1,12 @@
+package spin_glass;
+
+/** Receives the states produced by a sampler, one at a time, so that
+ *  samples can be streamed somewhere instead of retained in memory.
+ *  @author Andrew Berger */
+public interface SampleSink {
+
+    /** Receives the state of GLASS after sampling step STEP.
+     *  GLASS is live and will keep changing once I return, so anything
+     *  I keep must be copied out, e.g. with GLASS.getState(). */
+    void accept(Lattice glass, long step);
+}
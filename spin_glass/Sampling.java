@@ -1,182 +1,272 @@
 package spin_glass;
-    
+
+import java.util.Arrays;
 import java.util.Random;
-import java.util.ArrayList;
-import java.util.HashSet;
 
 /** Class containing Swendsen-Wang sampling with utility methods
+ *  A Wolff single-cluster mode may be selected instead, which grows only
+ *  the cluster of a random seed spin rather than labeling the whole
+ *  lattice each step.
+ *  Bonds are only ever formed along the edges of a Topology, whose
+ *  precomputed neighbor arrays every loop walks; the lattice's weights
+ *  should vanish off those edges.
+ *  The sampler works in place on its lattice: bonds are decided and
+ *  merged into a flat union-find forest, the chosen cluster is accepted
+ *  or rejected from the log ratio across its boundary before any spin
+ *  is touched, an accepted cluster is flipped directly in the lattice,
+ *  and samples are streamed to a SampleSink. All buffers are allocated
+ *  once, so a step allocates nothing.
  *  @author Andrew Berger */
 public class Sampling {
-    /** A new sampler. GLASS can be anything, but the focus is on 
-     *  pairwise interactions */
+    /** A new sampler. GLASS can be anything, but the focus is on
+     *  pairwise interactions. Bonds follow the topology of GLASS's
+     *  weights if they are sparse, and otherwise an open square grid,
+     *  in which case GLASS must have a square number of spins. */
     Sampling(Lattice glass) {
+        this(glass, inferTopology(glass));
+    }
+
+    /** A new sampler for GLASS forming bonds along the edges of
+     *  TOPOLOGY, which must have a site per spin of GLASS. */
+    Sampling(Lattice glass, Topology topology) {
+        if (topology.size() != glass.latticeSize()) {
+            throw new StateException("topology of " + topology.size()
+                                     + " spins for a lattice of "
+                                     + glass.latticeSize());
+        }
         _glass = glass;
-        _samples = new ArrayList<State>();
-        _rand = new Random();        
-        _dim = Math.sqrt(_glass.latticeSize());
-        if (_dim != Math.floor(_dim)) {
-            throw new StateException();
+        _rand = new FastRandom();
+        _rowStart = topology.rowStart();
+        _neighbors = topology.columns();
+        _parent = new int[_glass.latticeSize()];
+        _cluster = new int[_glass.latticeSize()];
+        _visited = new int[_glass.latticeSize()];
+        _algorithm = Algorithm.SWENDSEN_WANG;
+    }
+
+    /** The cluster moves I can make. */
+    public enum Algorithm {
+        /** Bond the whole lattice and flip the cluster of a random spin. */
+        SWENDSEN_WANG,
+        /** Grow and flip a single cluster from a random seed spin. */
+        WOLFF
+    }
+
+    /** Returns the topology of GLASS's weights, or an open square grid
+     *  if they have none. */
+    private static Topology inferTopology(Lattice glass) {
+        Topology topology = glass._weights.topology();
+        if (topology != null) {
+            return topology;
         }
-        _bonds = new boolean[(int)(2 * _dim) - 1][(int)(2 * _dim) - 1];
+        double dim = Math.sqrt(glass.latticeSize());
+        if (dim != Math.floor(dim)) {
+            throw new StateException("no square grid of "
+                                     + glass.latticeSize() + " spins");
+        }
+        return Topology.grid((int) dim, (int) dim, false);
     }
 
-    /** Returns the non-normalized probability of realizing state X.*/
-    private double pi(State x) {
-        return Math.exp(_glass.getEnergy(x));
+    /** Makes my subsequent steps use ALGORITHM. */
+    public void setAlgorithm(Algorithm algorithm) {
+        _algorithm = algorithm;
     }
 
-    private void sample(int nsamples, State initial) {
-        double pcurr, pnew;
-        State xcurr = initial;
+    /** Runs NSAMPLES steps starting from INITIAL, handing the state
+     *  after every step to SINK. */
+    public void sample(int nsamples, State initial, SampleSink sink) {
+        sample(nsamples, initial, sink, 1);
+    }
+
+    /** Runs NSAMPLES steps starting from INITIAL, handing the state
+     *  after every THINth step to SINK. THIN must be positive. */
+    public void sample(int nsamples, State initial, SampleSink sink,
+                       int thin) {
+        if (thin < 1) {
+            throw new IllegalArgumentException("thinning must be positive,"
+                                               + " not " + thin);
+        }
+        _glass.setSpins(initial);
         for (int u = 0 ; u < nsamples; u++) {
-            pcurr = pi(xcurr);
-            State xnew = pickState(xcurr);
-            pnew = pi(xnew);
-            double ptransition = Math.min(1, pnew/pcurr);
-            if (_rand.nextDouble() < ptransition) {
-                xcurr = xnew;
-                _samples.add(xcurr);
+            pickState();
+            double logRatio = logAcceptance();
+            boolean accepted =
+                logRatio >= 0 || _rand.nextDouble() < Math.exp(logRatio);
+            if (accepted) {
+                flipCluster();
+            }
+            SpinGlassMetrics.get().recordCluster(_clusterSize, accepted);
+            if ((u + 1) % thin == 0) {
+                SpinGlassMetrics.get().observe(_glass);
+                sink.accept(_glass, u);
             }
         }
     }
 
-    /** Picks a state according to Swendsen-Wang algorithm */
-    private State pickState(State xcurr) {
-        updateBonds(xcurr);
-        hoshenkopelman();
-        int x = _rand.nextInt((int) _dim);
-        int y = _rand.nextInt((int) _dim);
-        State xnew = flipRegion(xcurr, _labels[x][y]);
-        return xnew;
-    }
-                                
-    /** Flips all of the bits in REGION and returns that state.*/
-    private State flipRegion(State xcurr, int region) {
-        State xnew = new State(xcurr);
-        for (int[] coord : _regions.get(region)) {
-            xnew.flip(sqNum(coord[0], coord[1]));
-        }
-        return xnew;
-    }
-    
-    /** Core routine of Swendsen-Wang. Updates the bond matrix
-     *  according to a certain probability.*/
-    private void updateBonds(State xcurr) {
-        double pb = 0;
-        int x = 0;
-        int y = 0;
-        for (int i = 0; i < _dim; i++) {
-            for (int j = 0; j < _dim; j++) {
-                coord:
-                for (int k = 0; k < 1; k++) {
-                    if (k == 0) {
-                        //Spin to right of i,j
-                        if(j != _dim - 1) {
-                            x = i;
-                            y = j + 1;
-                        } else {
-                            break coord;
-                        }
-                    } else {
-                        //Spin below i,j
-                        if (i != _dim - 1) {
-                            x = i + 1; 
-                            y = j;
-                        } else {
-                            break coord;
-                        }
-                    }
-                    pb = _glass.pbond(xcurr, sqNum(i, j), sqNum(x, y));
-                    if (pb > 1) {
-                        break coord;
-                    } else if(_rand.nextDouble() < pb) {
-                        _bonds[2*i - x][2*j - y] = true;
-                    } else {
-                        _bonds[2*i - x][2*j - y] = false;
-                    }
-                }
+    /** Picks a cluster according to my algorithm and leaves its members
+     *  in _cluster. */
+    private void pickState() {
+        if (_algorithm == Algorithm.WOLFF) {
+            growCluster(_rand.nextInt(_glass.latticeSize()));
+        } else {
+            labelClusters();
+        }
+    }
+
+    /** Picks a cluster according to Swendsen-Wang algorithm: the one
+     *  holding a random spin. */
+    private void labelClusters() {
+        updateBonds();
+        int root = find(_rand.nextInt(_glass.latticeSize()));
+        nextStamp();
+        _clusterSize = 0;
+        for (int k = 0; k < _glass.latticeSize(); k++) {
+            if (find(k) == root) {
+                _visited[k] = _stamp;
+                _cluster[_clusterSize++] = k;
             }
         }
     }
 
-    /** Runs the Hoshen-Kopelman algorithm to find the largest contiguous regions*/
-    private void hoshenkopelman() {
-        _maxLabel = 0;
-        _labelLinks = new int[(int)(_dim * _dim)];
-        _labels = new int[(int)(2 * _dim) - 1][(int)(2 * _dim) - 1];
-        boolean left, aboveLeft;
-        for (int x = 0; x < (int)(_dim); x++) {
-            for (int y = 0; y < (int)(_dim); y++) {
-                if (x + y % 2 != 0 && _bonds[x][y] == true) {
-                    left = false;
-                    aboveLeft = false;
-                    if (x > 1) {
-                        left = _bonds[x - 2][y];
-                    }
-                    if (y > 1 && x > 0) {
-                        aboveLeft = _bonds[x - 1][y - 1];
-                    }
-                    if (!left && !aboveLeft) {
-                        _maxLabel += 1;
-                        _labels[x][y] = _maxLabel;
-                    } else if (left && !aboveLeft) {
-                        _labels[x][y] = find(_labels[x - 2][y]);
-                    } else if (!left && aboveLeft) {
-                        _labels[x][y] = find(_labels[x - 1][y - 1]);
-                    } else {
-                        union(_labels[x - 2][y], _labels[x - 1][y - 1]);
-                        _labels[x][y] = find(_labels[x - 2][y]);
-                    }
-                }
+    /** Grows a Wolff cluster from SEED, adding each unvisited neighbor of
+     *  a member with probability pbond. _cluster doubles as the work
+     *  stack: members past index next are yet to be expanded. */
+    private void growCluster(int seed) {
+        nextStamp();
+        _visited[seed] = _stamp;
+        _cluster[0] = seed;
+        _clusterSize = 1;
+        for (int next = 0; next < _clusterSize; next++) {
+            int here = _cluster[next];
+            for (int k = _rowStart[here]; k < _rowStart[here + 1]; k++) {
+                grow(here, _neighbors[k]);
             }
         }
-        
     }
 
-    /** Fills the _regions for easy region selection.*/
-    private void mapRegions() {
-        _regions = new ArrayList<HashSet<int[]>>();
-        for (int x = 0; x < (int)(_dim); x++) {
-            for (int y = 0; y < (int)(_dim); y++) {
-                if (x + y % 2 != 0) {
-                    _regions.get(_labels[x][y]).add(new int[]{x, y});
-                }
+    /** Adds spin Y, a neighbor of cluster member X, to the cluster with
+     *  probability pbond unless it has already been visited. */
+    private void grow(int x, int y) {
+        if (_visited[y] != _stamp && _rand.nextDouble() < _glass.pbond(x, y)) {
+            _visited[y] = _stamp;
+            _cluster[_clusterSize++] = y;
+        }
+    }
+
+    /** Returns the log of the Metropolis-Hastings ratio for flipping the
+     *  current cluster, whose members are marked _stamp in _visited:
+     *  -dE/T plus the log of the ratio of the probabilities of picking
+     *  the same cluster after and before the flip.
+     *  Bonds inside the cluster and away from it are unchanged by the
+     *  flip, so both terms come from the thresholds of the members and
+     *  the bonds across the cluster's boundary alone, and the cost is
+     *  O(cluster) however large the lattice. */
+    private double logAcceptance() {
+        double temp = _glass._temperature;
+        double logRatio = 0;
+        for (int k = 0; k < _clusterSize; k++) {
+            int here = _cluster[k];
+            logRatio += 2 * _glass.getSpin(here) * _glass.getThreshold(here)
+                / temp;
+            for (int p = _rowStart[here]; p < _rowStart[here + 1]; p++) {
+                logRatio += logBoundary(here, _neighbors[p], temp);
             }
         }
+        return logRatio;
     }
 
-    /** Returns the smallest equivalent label. */
-    private int find(int x) {
-        int r = x;
-        while (_labelLinks[r] != r) {
-            r = _labelLinks[r];
+    /** Returns the contribution to the log acceptance ratio of the bond
+     *  between cluster member X and its neighbor Y at temperature TEMP,
+     *  0 if Y is in the cluster too. Flipping X turns the bond's
+     *  energy -J s_x s_y into J s_x s_y, and the probability that the
+     *  bond was left open, 1 - pbond, from exp(-2 max(0, J s_x s_y) / T)
+     *  into exp(-2 max(0, -J s_x s_y) / T). */
+    private double logBoundary(int x, int y, double temp) {
+        if (_visited[y] == _stamp) {
+            return 0;
         }
-        while (_labelLinks[x] != x) {
-            int q = _labelLinks[x];
-            _labelLinks[x] = r;
-            x = q;
+        double bond = _glass._weights.get(x, y) * _glass.getSpin(x)
+            * _glass.getSpin(y);
+        double dE = 2 * bond;
+        double logProposal = 2 * (Math.max(0, bond) - Math.max(0, -bond));
+        return (logProposal - dE) / temp;
+    }
+
+    /** Starts a new mark in _visited, clearing every old mark first
+     *  if _stamp would wrap around. */
+    private void nextStamp() {
+        if (_stamp == Integer.MAX_VALUE) {
+            Arrays.fill(_visited, 0);
+            _stamp = 0;
         }
-        return r;
+        _stamp += 1;
     }
 
-    /** Makes label x and y equivalent.*/
-    private void union(int x, int y) {
-        _labelLinks[find(x)] = find(y);
+    /** Flips every spin of the current cluster, in place. */
+    private void flipCluster() {
+        for (int k = 0; k < _clusterSize; k++) {
+            _glass.flipSpin(_cluster[k]);
+        }
+    }
+
+    /** Core routine of Swendsen-Wang. Activates each bond between
+     *  neighboring spins with probability pbond, merging the clusters
+     *  it joins as it goes. Each edge is visited once, from its lower
+     *  end: neighbors ascend, so a row is walked down from its end.*/
+    private void updateBonds() {
+        for (int k = 0; k < _parent.length; k++) {
+            _parent[k] = k;
+        }
+        for (int here = 0; here < _parent.length; here++) {
+            for (int k = _rowStart[here + 1] - 1;
+                 k >= _rowStart[here] && _neighbors[k] > here; k--) {
+                bond(here, _neighbors[k]);
+            }
+        }
     }
 
-    /** Returns a mapping from Z^2 to Z^1*/
-    private int sqNum(int i, int j) {
-        return (int)(i*_dim) + j;
+    /** Joins the clusters of spins X and Y with probability pbond. */
+    private void bond(int x, int y) {
+        if (_rand.nextDouble() < _glass.pbond(x, y)) {
+            union(x, y);
+        }
     }
 
+    /** Returns the root of the cluster holding X, halving paths. */
+    private int find(int x) {
+        while (_parent[x] != x) {
+            _parent[x] = _parent[_parent[x]];
+            x = _parent[x];
+        }
+        return x;
+    }
+
+    /** Makes the clusters of x and y one.*/
+    private void union(int x, int y) {
+        int rx = find(x);
+        int ry = find(y);
+        if (rx < ry) {
+            _parent[ry] = rx;
+        } else {
+            _parent[rx] = ry;
+        }
+    }
 
-    private ArrayList<HashSet<int[]>> _regions;
-    private int _maxLabel;
-    private int[][] _labels;
-    private int[] _labelLinks;
-    private boolean[][] _bonds;
-    private double _dim;
+    /** Union-find forest over the spins: each spin's parent. */
+    private int[] _parent;
+    /** Members of the cluster picked this step, in its first
+     *  _clusterSize entries. */
+    private int[] _cluster;
+    private int _clusterSize;
+    /** Spins visited by the current Wolff growth are marked _stamp. */
+    private int[] _visited;
+    private int _stamp;
+    /** The cluster move I make each step. */
+    private Algorithm _algorithm;
+    /** CSR neighbor arrays of my topology: the neighbors of spin i are
+     *  _neighbors[_rowStart[i]] ... _neighbors[_rowStart[i + 1] - 1]. */
+    private int[] _rowStart;
+    private int[] _neighbors;
     private Lattice _glass;
-    private ArrayList<State> _samples;
     private Random _rand;
-}
\ No newline at end of file
+}
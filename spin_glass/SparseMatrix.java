@@ -1,26 +1,347 @@
 package spin_glass;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
-/** Sparse Matrix implementation for use in MPF learning.
- *  The state transition matrix is of dimension 2^d X 2^d 
+/** A standalone sparse matrix container, with no user in this package:
+ *  MPF computes its flows directly rather than through a stored
+ *  transition matrix. Built for matrices like that one, of dimension
+ *  2^d X 2^d, so rows and columns are indexed by long state codes
+ *  rather than positions.
+ *  Rows are found through an open-addressing hash table of primitive
+ *  keys; each row keeps its column keys in a long[] beside a double[]
+ *  of values. Nothing is boxed and there are no entry objects, so a
+ *  non-zero costs 16 bytes plus slack.
+ *  Writes append to their row, so filling a row costs O(1) per entry.
+ *  A row written out of column order is sorted, and its repeated
+ *  columns merged, once, the first time it is read afterwards; a row
+ *  written in ascending column order is never sorted at all. Reads may
+ *  therefore modify me, and must not race with each other or with
+ *  writes. A row is read by plain indexed iteration:
+ *      int r = m.findRow(row);
+ *      for (int k = 0; k < m.rowLength(r); k++) {
+ *          ... m.column(r, k) ... m.value(r, k) ...
+ *      }
  *  @author Andrew Berger*/
-public class SparseMatrix<T> {
-    
-    /** A new sparse matrix. */
+public class SparseMatrix {
+
+    /** A new, empty sparse matrix. */
     SparseMatrix() {
-        ;
+        this(16);
+    }
+
+    /** A new, empty sparse matrix with room for about ROWS rows before
+     *  it must grow. */
+    SparseMatrix(int rows) {
+        int capacity = Integer.highestOneBit(Math.max(4, rows) * 2 - 1) * 2;
+        _slots = new int[capacity];
+        _rowKeys = new long[Math.max(4, rows)];
+        _columns = new long[_rowKeys.length][];
+        _values = new double[_rowKeys.length][];
+        _lengths = new int[_rowKeys.length];
+        _sorted = new int[_rowKeys.length];
+        _replaces = new boolean[_rowKeys.length][];
+    }
+
+    /** Sets entry (I, J) to VAL. */
+    public void put(long i, long j, double val) {
+        int r = findOrAddRow(i);
+        if (_sorted[r] == _lengths[r]) {
+            int k = Arrays.binarySearch(_columns[r], 0, _lengths[r], j);
+            if (k >= 0) {
+                _values[r][k] = val;
+                return;
+            }
+        }
+        append(r, j, val, true);
     }
 
-    //HashMap implementation is naive and slow, balanced tree is the way to go
-    
-    public void put(double i, double j, T val) {
-        ;
+    /** Adds DELTA to entry (I, J). */
+    public void add(long i, long j, double delta) {
+        int r = findOrAddRow(i);
+        if (_sorted[r] == _lengths[r]) {
+            int k = Arrays.binarySearch(_columns[r], 0, _lengths[r], j);
+            if (k >= 0) {
+                _values[r][k] += delta;
+                return;
+            }
+        }
+        append(r, j, delta, false);
     }
 
+    /** Returns entry (I, J), 0 if it was never set. */
+    public double get(long i, long j) {
+        int r = findRow(i);
+        if (r < 0) {
+            return 0;
+        }
+        settle(r);
+        int k = Arrays.binarySearch(_columns[r], 0, _lengths[r], j);
+        return k < 0 ? 0 : _values[r][k];
+    }
+
+    /** Returns true iff entry (I, J) has been set. */
+    public boolean contains(long i, long j) {
+        int r = findRow(i);
+        if (r < 0) {
+            return false;
+        }
+        settle(r);
+        return Arrays.binarySearch(_columns[r], 0, _lengths[r], j) >= 0;
+    }
+
+    /** Returns the number of rows with an entry set. */
+    public int numRows() {
+        return _numRows;
+    }
 
-    public T get(double i, T j) {
-        return null;
+    /** Returns the number of entries set. Sorts every row with
+     *  entries pending. */
+    public long size() {
+        for (int r = 0; r < _numRows; r++) {
+            settle(r);
+        }
+        return _size;
     }
 
-}
\ No newline at end of file
+    /** Returns the position of row I, in [0, numRows()), or -1 if it
+     *  has no entry set. Positions are stable until clear(). */
+    public int findRow(long i) {
+        int mask = _slots.length - 1;
+        for (int s = hash(i) & mask;; s = (s + 1) & mask) {
+            int r = _slots[s] - 1;
+            if (r < 0) {
+                return -1;
+            }
+            if (_rowKeys[r] == i) {
+                return r;
+            }
+        }
+    }
+
+    /** Returns the key of the row at position R. */
+    public long rowKey(int r) {
+        return _rowKeys[r];
+    }
+
+    /** Returns the number of entries set in the row at position R. */
+    public int rowLength(int r) {
+        settle(r);
+        return _lengths[r];
+    }
+
+    /** Returns the column of the Kth entry of the row at position R.
+     *  Columns ascend with K. */
+    public long column(int r, int k) {
+        settle(r);
+        return _columns[r][k];
+    }
+
+    /** Returns the value of the Kth entry of the row at position R. */
+    public double value(int r, int k) {
+        settle(r);
+        return _values[r][k];
+    }
+
+    /** Removes every entry, keeping my storage for reuse. */
+    public void clear() {
+        Arrays.fill(_slots, 0);
+        Arrays.fill(_lengths, 0, _numRows, 0);
+        Arrays.fill(_sorted, 0, _numRows, 0);
+        _numRows = 0;
+        _size = 0;
+    }
+
+    /** Returns the position of row I, adding it if it is new. */
+    private int findOrAddRow(long i) {
+        int mask = _slots.length - 1;
+        int s = hash(i) & mask;
+        for (;; s = (s + 1) & mask) {
+            int r = _slots[s] - 1;
+            if (r < 0) {
+                break;
+            }
+            if (_rowKeys[r] == i) {
+                return r;
+            }
+        }
+        if (_numRows == _rowKeys.length) {
+            int rows = 2 * _rowKeys.length;
+            _rowKeys = Arrays.copyOf(_rowKeys, rows);
+            _columns = Arrays.copyOf(_columns, rows);
+            _values = Arrays.copyOf(_values, rows);
+            _lengths = Arrays.copyOf(_lengths, rows);
+            _sorted = Arrays.copyOf(_sorted, rows);
+            _replaces = Arrays.copyOf(_replaces, rows);
+        }
+        int r = _numRows++;
+        _rowKeys[r] = i;
+        if (_columns[r] == null) {
+            _columns[r] = new long[ROW_START];
+            _values[r] = new double[ROW_START];
+        }
+        _slots[s] = r + 1;
+        if (2 * _numRows > _slots.length) {
+            rehash();
+        }
+        return r;
+    }
+
+    /** Appends column J with value VAL to row R, as a write that
+     *  replaces any earlier value of the entry iff REPLACE, and as one
+     *  that adds to it otherwise. The row stays sorted if J follows its
+     *  last column. */
+    private void append(int r, long j, double val, boolean replace) {
+        int length = _lengths[r];
+        if (length == _columns[r].length) {
+            _columns[r] = Arrays.copyOf(_columns[r], 2 * length);
+            _values[r] = Arrays.copyOf(_values[r], 2 * length);
+            if (_replaces[r] != null) {
+                _replaces[r] = Arrays.copyOf(_replaces[r], 2 * length);
+            }
+        }
+        _columns[r][length] = j;
+        _values[r][length] = val;
+        _lengths[r] = length + 1;
+        if (_sorted[r] == length
+            && (length == 0 || j > _columns[r][length - 1])) {
+            _sorted[r] = length + 1;
+            _size += 1;
+            return;
+        }
+        if (replace && _replaces[r] == null) {
+            _replaces[r] = new boolean[_columns[r].length];
+        }
+        if (_replaces[r] != null) {
+            _replaces[r][length] = replace;
+        }
+    }
+
+    /** Sorts the entries of row R appended since it was last sorted into
+     *  the rest, merging repeated columns: in the order written, a
+     *  replacing write sets the value and any other write adds to it. */
+    private void settle(int r) {
+        int sorted = _sorted[r];
+        int length = _lengths[r];
+        if (sorted == length) {
+            return;
+        }
+        long[] columns = _columns[r];
+        double[] values = _values[r];
+        boolean[] replaces = _replaces[r];
+        if (_order.length < length) {
+            _order = new int[columns.length];
+            _merged = new int[columns.length];
+            _rowColumns = new long[columns.length];
+            _rowValues = new double[columns.length];
+        }
+        for (int k = 0; k < length; k++) {
+            _order[k] = k;
+        }
+        sort(columns, sorted, length);
+        merge(columns, 0, sorted, length);
+        long[] newColumns = _rowColumns;
+        double[] newValues = _rowValues;
+        int n = 0;
+        for (int p = 0; p < length; p++) {
+            int k = _order[p];
+            if (n == 0 || newColumns[n - 1] != columns[k]) {
+                newColumns[n] = columns[k];
+                newValues[n++] = values[k];
+            } else if (k >= sorted && replaces != null && replaces[k]) {
+                newValues[n - 1] = values[k];
+            } else {
+                newValues[n - 1] += values[k];
+            }
+        }
+        System.arraycopy(newColumns, 0, columns, 0, n);
+        System.arraycopy(newValues, 0, values, 0, n);
+        if (replaces != null) {
+            Arrays.fill(replaces, 0, length, false);
+        }
+        _lengths[r] = n;
+        _sorted[r] = n;
+        _size += n - sorted;
+    }
+
+    /** Stably sorts _order[LO, HI) by the entries of COLUMNS it
+     *  indexes. */
+    private void sort(long[] columns, int lo, int hi) {
+        if (hi - lo < 2) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        sort(columns, lo, mid);
+        sort(columns, mid, hi);
+        merge(columns, lo, mid, hi);
+    }
+
+    /** Stably merges the sorted runs _order[LO, MID) and _order[MID, HI)
+     *  by the entries of COLUMNS they index. */
+    private void merge(long[] columns, int lo, int mid, int hi) {
+        if (lo == mid || mid == hi
+            || columns[_order[mid - 1]] <= columns[_order[mid]]) {
+            return;
+        }
+        System.arraycopy(_order, lo, _merged, lo, hi - lo);
+        int a = lo;
+        int b = mid;
+        for (int p = lo; p < hi; p++) {
+            if (b == hi
+                || a < mid && columns[_merged[a]] <= columns[_merged[b]]) {
+                _order[p] = _merged[a++];
+            } else {
+                _order[p] = _merged[b++];
+            }
+        }
+    }
+
+    /** Doubles my hash table and reinserts every row. */
+    private void rehash() {
+        _slots = new int[2 * _slots.length];
+        int mask = _slots.length - 1;
+        for (int r = 0; r < _numRows; r++) {
+            int s = hash(_rowKeys[r]) & mask;
+            while (_slots[s] != 0) {
+                s = (s + 1) & mask;
+            }
+            _slots[s] = r + 1;
+        }
+    }
+
+    /** Returns a well mixed hash of KEY, whose low bits may be all
+     *  that distinguish it from another. */
+    private static int hash(long key) {
+        long z = key * 0x9E3779B97F4A7C15L;
+        return (int) (z ^ z >>> 32);
+    }
+
+    /** Initial capacity of a row. */
+    private static final int ROW_START = 4;
+
+    /** Open-addressing table: position + 1 of the row hashed to each
+     *  slot, 0 if empty. At most half full. */
+    private int[] _slots;
+    /** Key of the row at each position. */
+    private long[] _rowKeys;
+    /** Column keys of each row, in its first _lengths entries. */
+    private long[][] _columns;
+    /** Value of each entry of each row, parallel to _columns. */
+    private double[][] _values;
+    private int[] _lengths;
+    /** Length of the prefix of each row that is sorted with no column
+     *  repeated. The entries past it are pending until settle(). */
+    private int[] _sorted;
+    /** Whether each pending entry of a row replaces, rather than adds
+     *  to, earlier values. Null for rows with no replacing write
+     *  pending since they were allocated. */
+    private boolean[][] _replaces;
+    /** Scratch for settle(): a permutation of a row's entries, the
+     *  buffer merged from, and the row merged in sorted order before it
+     *  is copied back. Grown to the longest row settled, never shrunk. */
+    private int[] _order = new int[0];
+    private int[] _merged = new int[0];
+    private long[] _rowColumns = new long[0];
+    private double[] _rowValues = new double[0];
+    private int _numRows;
+    private long _size;
+}
@@ -0,0 +1,285 @@
+package spin_glass;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** Process-wide counters and gauges describing what the samplers,
+ *  annealers and learners are doing, published over JMX as
+ *  spin_glass:type=Metrics and optionally logged periodically.
+ *  The hot paths only ever add to striped LongAdders, and do so once per
+ *  sweep, cluster move or gradient rather than once per spin, so there
+ *  is no lock and no shared cache line to fight over. Gauges are
+ *  volatile snapshots written at the same boundaries; reading them never
+ *  touches a live lattice.
+ *  @author Andrew Berger */
+public final class SpinGlassMetrics implements SpinGlassMetricsMBean {
+
+    /** Returns the metrics of this process, registering them with the
+     *  platform MBean server on first use. */
+    public static SpinGlassMetrics get() {
+        return INSTANCE;
+    }
+
+    /** Not instantiable outside get(). */
+    private SpinGlassMetrics() {
+        for (int k = 0; k < _clusterSizes.length; k++) {
+            _clusterSizes[k] = new LongAdder();
+        }
+    }
+
+    /** Records UPDATES spin updates, of which FLIPS changed a spin. */
+    void recordUpdates(long updates, long flips) {
+        _updates.add(updates);
+        _flips.add(flips);
+    }
+
+    /** Records a proposed cluster move of SIZE spins, ACCEPTED or not. */
+    void recordCluster(int size, boolean accepted) {
+        _clusterMoves.increment();
+        if (accepted) {
+            _clusterAccepts.increment();
+        }
+        _clusterSizes[31 - Integer.numberOfLeadingZeros(Math.max(size, 1))]
+            .increment();
+    }
+
+    /** Records an attempted replica exchange, ACCEPTED or not. */
+    void recordSwap(boolean accepted) {
+        _swaps.increment();
+        if (accepted) {
+            _swapAccepts.increment();
+        }
+    }
+
+    /** Records an MPF step whose gradient had squared norm NORMSQUARED
+     *  at objective OBJECTIVE. */
+    void recordGradient(double normSquared, double objective) {
+        _gradientSteps.increment();
+        _gradientNorm = Math.sqrt(normSquared);
+        _objective = objective;
+    }
+
+    /** Snapshots the energy, magnetization and temperature of GLASS.
+     *  Must be called from the thread that owns GLASS. Costs one popcount
+     *  per 64 spins: the energy is read from GLASS's cache, and left as
+     *  it was if that cache is stale rather than forcing a refresh. */
+    void observe(Lattice glass) {
+        long on = 0;
+        PackedSpins spins = glass._lattice;
+        for (int k = 0; k < spins.numWords(); k++) {
+            on += Long.bitCount(spins.word(k));
+        }
+        int size = glass.latticeSize();
+        if (!glass.fieldsStale()) {
+            _energy = glass.cachedEnergy();
+        }
+        _magnetization = size == 0 ? 0 : (2.0 * on - size) / size;
+        _temperature = glass._temperature;
+    }
+
+    @Override
+    public long getSpinUpdates() {
+        return _updates.sum();
+    }
+
+    @Override
+    public long getSpinFlips() {
+        return _flips.sum();
+    }
+
+    @Override
+    public double getSpinUpdatesPerSecond() {
+        return _jmxRate.rate(_updates.sum());
+    }
+
+    @Override
+    public double getFlipRate() {
+        return ratio(_flips.sum(), _updates.sum());
+    }
+
+    @Override
+    public long getClusterMoves() {
+        return _clusterMoves.sum();
+    }
+
+    @Override
+    public double getClusterAcceptance() {
+        return ratio(_clusterAccepts.sum(), _clusterMoves.sum());
+    }
+
+    @Override
+    public double getSwapAcceptance() {
+        return ratio(_swapAccepts.sum(), _swaps.sum());
+    }
+
+    @Override
+    public long[] getClusterSizeHistogram() {
+        long[] result = new long[_clusterSizes.length];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = _clusterSizes[k].sum();
+        }
+        return result;
+    }
+
+    @Override
+    public double getEnergy() {
+        return _energy;
+    }
+
+    @Override
+    public double getMagnetization() {
+        return _magnetization;
+    }
+
+    @Override
+    public double getTemperature() {
+        return _temperature;
+    }
+
+    @Override
+    public double getGradientNorm() {
+        return _gradientNorm;
+    }
+
+    @Override
+    public double getObjective() {
+        return _objective;
+    }
+
+    @Override
+    public long getGradientSteps() {
+        return _gradientSteps.sum();
+    }
+
+    @Override
+    public void reset() {
+        _updates.reset();
+        _flips.reset();
+        _clusterMoves.reset();
+        _clusterAccepts.reset();
+        _swaps.reset();
+        _swapAccepts.reset();
+        _gradientSteps.reset();
+        for (LongAdder bucket : _clusterSizes) {
+            bucket.reset();
+        }
+    }
+
+    /** Logs a summary line to the spin_glass logger every PERIODSECONDS,
+     *  from a daemon thread, until stopLogging. */
+    public synchronized void startLogging(long periodSeconds) {
+        stopLogging();
+        if (_logger == null) {
+            _logger = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "spin_glass-metrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        _logging = _logger.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    LOG.info(summary());
+                }
+            }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Stops periodic logging, if it was started. */
+    public synchronized void stopLogging() {
+        if (_logging != null) {
+            _logging.cancel(false);
+            _logging = null;
+        }
+    }
+
+    /** Returns a one line summary of my current values. Its update rate
+     *  is over the time since the previous summary, independent of
+     *  getSpinUpdatesPerSecond(). */
+    public String summary() {
+        return String.format("updates/s=%.4g flip=%.3f cluster-accept=%.3f"
+                             + " swap-accept=%.3f E=%.6g M=%.4f T=%.4g"
+                             + " |grad|=%.4g",
+                             _summaryRate.rate(_updates.sum()),
+                             getFlipRate(),
+                             getClusterAcceptance(), getSwapAcceptance(),
+                             _energy, _magnetization, _temperature,
+                             _gradientNorm);
+    }
+
+    /** Returns NUM / DEN, or 0 if DEN is 0. */
+    private static double ratio(long num, long den) {
+        return den == 0 ? 0 : (double) num / den;
+    }
+
+    /** The rate of a monotonic count over the interval between one
+     *  reader's successive reads. Each reader has its own, so readers
+     *  do not shorten one another's intervals. */
+    private static final class RateWindow {
+
+        /** Returns the rate per second at which the count grew to TOTAL
+         *  since my previous call, or since I was made. */
+        synchronized double rate(long total) {
+            long now = System.nanoTime();
+            double rate = now == _time ? 0
+                : (total - _total) * 1e9 / (now - _time);
+            _time = now;
+            _total = total;
+            return rate;
+        }
+
+        /** Time and count at the previous read. */
+        private long _time = System.nanoTime();
+        private long _total;
+    }
+
+    /** Returns a new instance, registered with the platform MBean server
+     *  if it will have it. */
+    private static SpinGlassMetrics register() {
+        SpinGlassMetrics metrics = new SpinGlassMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warning("metrics not published over JMX: " + e);
+        }
+        return metrics;
+    }
+
+    /** Name I am published under. */
+    public static final String OBJECT_NAME = "spin_glass:type=Metrics";
+    private static final Logger LOG = Logger.getLogger("spin_glass");
+    private static final SpinGlassMetrics INSTANCE = register();
+
+    private final LongAdder _updates = new LongAdder();
+    private final LongAdder _flips = new LongAdder();
+    private final LongAdder _clusterMoves = new LongAdder();
+    private final LongAdder _clusterAccepts = new LongAdder();
+    private final LongAdder _swaps = new LongAdder();
+    private final LongAdder _swapAccepts = new LongAdder();
+    private final LongAdder _gradientSteps = new LongAdder();
+    /** Cluster counts by floor(log2(size)). */
+    private final LongAdder[] _clusterSizes = new LongAdder[32];
+    private volatile double _energy;
+    private volatile double _magnetization;
+    private volatile double _temperature;
+    private volatile double _gradientNorm;
+    private volatile double _objective;
+    /** Update rate windows of JMX reads and of summary(). */
+    private final RateWindow _jmxRate = new RateWindow();
+    private final RateWindow _summaryRate = new RateWindow();
+    /** Runs the periodic log line, once started. */
+    private ScheduledExecutorService _logger;
+    private ScheduledFuture<?> _logging;
+}
@@ -0,0 +1,56 @@
+package spin_glass;
+
+/** The management interface of SpinGlassMetrics, as seen over JMX.
+ *  Counts are totals since the last reset; rates are over the interval
+ *  since the previous read of the same rate.
+ *  @author Andrew Berger */
+public interface SpinGlassMetricsMBean {
+
+    /** Returns the number of single spin updates made. */
+    long getSpinUpdates();
+
+    /** Returns the number of spin updates that changed a spin. */
+    long getSpinFlips();
+
+    /** Returns spin updates per second since the previous call of this
+     *  method. Logged summaries keep a separate window. */
+    double getSpinUpdatesPerSecond();
+
+    /** Returns the fraction of spin updates that changed a spin. */
+    double getFlipRate();
+
+    /** Returns the number of cluster moves proposed by samplers. */
+    long getClusterMoves();
+
+    /** Returns the fraction of proposed cluster moves accepted by the
+     *  Metropolis test. */
+    double getClusterAcceptance();
+
+    /** Returns the fraction of attempted replica exchanges accepted. */
+    double getSwapAcceptance();
+
+    /** Returns the counts of proposed clusters by size: entry k counts
+     *  those of 2^k to 2^(k+1) - 1 spins. */
+    long[] getClusterSizeHistogram();
+
+    /** Returns the energy of the lattice last observed. */
+    double getEnergy();
+
+    /** Returns the mean spin of the lattice last observed, in [-1, 1]. */
+    double getMagnetization();
+
+    /** Returns the temperature of the lattice last observed. */
+    double getTemperature();
+
+    /** Returns the L2 norm of the last MPF gradient. */
+    double getGradientNorm();
+
+    /** Returns the MPF objective at the last gradient. */
+    double getObjective();
+
+    /** Returns the number of MPF weight updates made. */
+    long getGradientSteps();
+
+    /** Zeroes every count. */
+    void reset();
+}
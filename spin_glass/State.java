@@ -2,50 +2,187 @@ package spin_glass;
 
 import java.util.BitSet;
 
-/** Class holding a single state of arbitrary dimension 
- *  Internal representation is a bitset 
+/** Class holding a single state of a fixed number of spins.
+ *  Internal representation is packed 64 bit words: spin i lives in bit
+ *  i % 64 of word i / 64, set iff the spin is activated, and bits past
+ *  size() are clear. States are immutable, so they may be shared freely
+ *  between threads; their hash is computed once, at construction, into
+ *  a final field.
+ *  The neighbors of a state differing in one spin are flyweight views,
+ *  holding only the state and the flipped index, so all size() of them
+ *  can be visited without copying any words.
  *  @author Andrew Berger */
 public class State {
 
-    State(BitSet state) {
-        _state = state; 
+    /** A state of SIZE spins, activated where STATE is set. */
+    State(BitSet state, int size) {
+        this(state.toLongArray(), size);
     }
 
+    /** A state of SIZE spins packed in WORDS, which is copied. */
+    State(long[] words, int size) {
+        _size = size;
+        _words = new long[numWords(size)];
+        System.arraycopy(words, 0, _words, 0,
+                         Math.min(words.length, _words.length));
+        if (_words.length > 0 && (size & 63) != 0) {
+            _words[_words.length - 1] &= -1L >>> -size;
+        }
+        _hash = computeHash();
+    }
+
+    /** A copy of STATE, which may be a view. */
     State(State state) {
-        _state = state.getState();
+        _size = state.size();
+        _words = new long[state.numWords()];
+        for (int k = 0; k < _words.length; k++) {
+            _words[k] = state.word(k);
+        }
+        _hash = computeHash();
+    }
+
+    /** A state of SIZE spins whose words are supplied by a subclass
+     *  overriding word(). Its hash64() is recomputed on every call unless
+     *  the subclass overrides that too. */
+    State(int size) {
+        _size = size;
+        _words = null;
+        _hash = 0;
     }
 
-    public State[] generateBitFlips () { 
+    /** Returns every state differing from me in exactly one spin, the
+     *  ith differing in spin i. Each is a view of me. */
+    public State[] generateBitFlips() {
         State[] bitFlips = new State[size()];
-        for (int i = 0; i < size(); i++) {
-            _state.flip(i);
-            bitFlips[i] = new State(_state);
-            _state.flip(i);
+        for (int i = 0; i < bitFlips.length; i++) {
+            bitFlips[i] = flipped(i);
         }
         return bitFlips;
     }
 
-    /** Returns my internal representation. */
+    /** Returns a view of me with the spin at I flipped. */
+    public State flipped(int i) {
+        if (i < 0 || i >= _size) {
+            throw new IndexOutOfBoundsException("spin " + i);
+        }
+        return new Flipped(this, i);
+    }
+
+    /** Returns a copy of my spins as a BitSet. */
     public BitSet getState() {
-        return _state;
+        long[] words = new long[numWords()];
+        for (int k = 0; k < words.length; k++) {
+            words[k] = word(k);
+        }
+        return BitSet.valueOf(words);
     }
 
     /** Returns the number of spins I hold.*/
     public int size() {
-        return _state.size();
+        return _size;
     }
 
     /** Returns the spin indexed at i */
     public boolean getSpin(int i) {
-        return _state.get(i);
+        return (word(i >>> 6) >>> i & 1) != 0;
     }
 
-    /** Flips the spin at i. */
-    public void flip(int i) {
-        _state.flip(i);
+    /** Returns the number of words packing my spins. */
+    public int numWords() {
+        return numWords(_size);
+    }
+
+    /** Returns word K of my packed spins. */
+    public long word(int k) {
+        return _words[k];
+    }
+
+    /** Returns a 64 bit hash of my spins. Equal states hash equally. */
+    public long hash64() {
+        return _words == null ? computeHash() : _hash;
+    }
+
+    /** Returns the 64 bit hash of my spins, from word(). */
+    final long computeHash() {
+        long hash = _size;
+        for (int k = 0; k < numWords(); k++) {
+            hash ^= mix(k, word(k));
+        }
+        return hash;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = hash64();
+        return (int) (hash ^ hash >>> 32);
     }
-    
-    /** Indexed by LSD */
-    private BitSet _state;
-}
 
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof State)) {
+            return false;
+        }
+        State other = (State) obj;
+        if (other.size() != size() || other.hash64() != hash64()) {
+            return false;
+        }
+        for (int k = 0; k < numWords(); k++) {
+            if (other.word(k) != word(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of words packing SIZE spins. */
+    static int numWords(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /** Returns the contribution of WORD, at index K, to hash64(). The
+     *  contributions are xored, so flipping one spin updates a hash in
+     *  constant time. */
+    static long mix(int k, long word) {
+        long z = word + (k + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        return z ^ z >>> 31;
+    }
+
+    /** A view of a state with one spin flipped. */
+    private static final class Flipped extends State {
+
+        Flipped(State base, int flip) {
+            super(base.size());
+            _base = base;
+            _flip = flip;
+        }
+
+        @Override
+        public long word(int k) {
+            long word = _base.word(k);
+            return k == _flip >>> 6 ? word ^ 1L << _flip : word;
+        }
+
+        @Override
+        public long hash64() {
+            int k = _flip >>> 6;
+            long word = _base.word(k);
+            return _base.hash64() ^ mix(k, word) ^ mix(k, word ^ 1L << _flip);
+        }
+
+        /** The state I view. */
+        private final State _base;
+        /** The index of the spin I flip. */
+        private final int _flip;
+    }
+
+    /** Packed spins, indexed by LSD, or null if supplied by a subclass. */
+    private final long[] _words;
+    private final int _size;
+    /** hash64(), unless my words are supplied by a subclass. */
+    private final long _hash;
+}
@@ -0,0 +1,38 @@
+package spin_glass;
+
+/** Layout of the binary state file format.
+ *  A file is a 32 byte header followed by fixed-width records, all
+ *  little-endian:
+ *    int magic, int version, int spins, int flags, long records,
+ *    long reserved,
+ *  then per record ceil(spins / 64) longs of packed spins, bit i % 64 of
+ *  word i / 64 set iff spin i is activated, followed by a double energy
+ *  if the ENERGIES flag is set. Records are multiples of 8 bytes, so
+ *  every word is aligned and can be read in place.
+ *  @author Andrew Berger */
+final class StateFile {
+
+    /** Not instantiable. */
+    private StateFile() {
+    }
+
+    /** Returns the number of words holding the spins of a record. */
+    static int words(int spins) {
+        return State.numWords(spins);
+    }
+
+    /** Returns the size in bytes of a record of SPINS spins, with an
+     *  energy iff ENERGIES. */
+    static int recordSize(int spins, boolean energies) {
+        return 8 * (words(spins) + (energies ? 1 : 0));
+    }
+
+    /** "SPST" */
+    static final int MAGIC = 0x53505354;
+    static final int VERSION = 1;
+    /** Flag set iff each record carries an energy. */
+    static final int ENERGIES = 1;
+    static final int HEADER_SIZE = 32;
+    /** Offset of the record count within the header. */
+    static final int RECORDS_OFFSET = 16;
+}
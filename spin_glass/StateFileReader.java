@@ -0,0 +1,126 @@
+package spin_glass;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** Reads a file in the StateFile format by memory-mapping it.
+ *  States are handed out as read-only views over the mapped bytes, so
+ *  opening even a very large file copies nothing onto the heap. Files
+ *  over 2GB are mapped as several segments, each holding whole records.
+ *  Can be used directly as MPF's ObservationSource.
+ *  @author Andrew Berger */
+public class StateFileReader implements ObservationSource, Closeable {
+
+    /** A new reader of the state file at PATH. */
+    public StateFileReader(String path) throws IOException {
+        _channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(StateFile.HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && _channel.read(header) >= 0) {
+            continue;
+        }
+        _numSpins = header.getInt(8);
+        _energies = (header.getInt(12) & StateFile.ENERGIES) != 0;
+        _records = header.getLong(StateFile.RECORDS_OFFSET);
+        _recordSize = _numSpins < 1 ? 0
+            : StateFile.recordSize(_numSpins, _energies);
+        if (header.hasRemaining() || header.getInt(0) != StateFile.MAGIC
+            || header.getInt(4) != StateFile.VERSION || _numSpins < 1
+            || _records < 0
+            || _records > (_channel.size() - StateFile.HEADER_SIZE)
+                          / _recordSize) {
+            _channel.close();
+            throw new StateException(path + " is not a state file");
+        }
+        _perSegment = Math.max(1, Integer.MAX_VALUE / _recordSize);
+        int segments = (int) ((_records + _perSegment - 1) / _perSegment);
+        _segments = new ByteBuffer[segments];
+        for (int s = 0; s < segments; s++) {
+            long first = (long) s * _perSegment;
+            long count = Math.min(_perSegment, _records - first);
+            MappedByteBuffer map =
+                _channel.map(FileChannel.MapMode.READ_ONLY,
+                             StateFile.HEADER_SIZE + first * _recordSize,
+                             count * _recordSize);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            _segments[s] = map;
+        }
+    }
+
+    /** Returns the number of spins in each state. */
+    public int numSpins() {
+        return _numSpins;
+    }
+
+    /** Returns the number of states in my file. */
+    public long records() {
+        return _records;
+    }
+
+    /** Returns true iff my states carry energies. */
+    public boolean hasEnergies() {
+        return _energies;
+    }
+
+    /** Returns a view of state K, backed by the mapped file. */
+    public State get(long k) {
+        return new MappedState(segment(k), offset(k), _numSpins);
+    }
+
+    /** Returns the energy recorded with state K. */
+    public double energy(long k) {
+        if (!_energies) {
+            throw new StateException("no energies recorded");
+        }
+        return segment(k).getDouble(offset(k) + _recordSize - 8);
+    }
+
+    @Override
+    public State next() {
+        return _next < _records ? get(_next++) : null;
+    }
+
+    @Override
+    public void rewind() {
+        _next = 0;
+    }
+
+    /** Closes my file. Views already handed out stay readable until
+     *  their mapping is reclaimed. */
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+
+    /** Returns the segment holding record K. */
+    private ByteBuffer segment(long k) {
+        if (k < 0 || k >= _records) {
+            throw new IndexOutOfBoundsException("record " + k);
+        }
+        return _segments[(int) (k / _perSegment)];
+    }
+
+    /** Returns the offset of record K within its segment. */
+    private int offset(long k) {
+        return (int) (k % _perSegment) * _recordSize;
+    }
+
+    private final FileChannel _channel;
+    /** Mapped segments, each holding _perSegment records but the last. */
+    private final ByteBuffer[] _segments;
+    private final int _numSpins;
+    private final boolean _energies;
+    private final long _records;
+    /** Bytes per record. */
+    private final int _recordSize;
+    /** Records per mapped segment. */
+    private final int _perSegment;
+    /** Index of the record next() hands out. */
+    private long _next;
+}
@@ -0,0 +1,137 @@
+package spin_glass;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** Writes states to a file in the StateFile format through one reused
+ *  buffer. Can be handed to a sampler directly as its SampleSink.
+ *  The record count is filled into the header on close().
+ *  @author Andrew Berger */
+public class StateFileWriter implements SampleSink, Closeable {
+
+    /** A new writer of states of NUMSPINS > 0 spins to PATH, replacing
+     *  any file there, recording an energy with each state iff ENERGIES. */
+    public StateFileWriter(String path, int numSpins, boolean energies)
+        throws IOException {
+        if (numSpins < 1) {
+            throw new StateException("states of " + numSpins + " spins");
+        }
+        _channel = FileChannel.open(Paths.get(path),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+        _numSpins = numSpins;
+        _energies = energies;
+        int record = StateFile.recordSize(numSpins, energies);
+        _buffer = ByteBuffer.allocateDirect(Math.max(record, BUFFER_SIZE)
+                                            / record * record);
+        _buffer.order(ByteOrder.LITTLE_ENDIAN);
+        _buffer.putInt(StateFile.MAGIC);
+        _buffer.putInt(StateFile.VERSION);
+        _buffer.putInt(numSpins);
+        _buffer.putInt(energies ? StateFile.ENERGIES : 0);
+        _buffer.putLong(0);
+        _buffer.putLong(0);
+    }
+
+    /** Appends STATE, with energy 0 if I record energies. */
+    public void write(State state) throws IOException {
+        write(state, 0);
+    }
+
+    /** Appends STATE with ENERGY. */
+    public void write(State state, double energy) throws IOException {
+        if (state.size() != _numSpins) {
+            throw new StateException("state of " + state.size()
+                                     + " spins for a file of " + _numSpins);
+        }
+        reserve();
+        for (int k = 0; k < state.numWords(); k++) {
+            _buffer.putLong(state.word(k));
+        }
+        finish(energy);
+    }
+
+    /** Appends the current state of GLASS, and its energy if I record
+     *  energies. */
+    public void write(Lattice glass) throws IOException {
+        if (glass.latticeSize() != _numSpins) {
+            throw new StateException("lattice of " + glass.latticeSize()
+                                     + " spins for a file of " + _numSpins);
+        }
+        reserve();
+        PackedSpins spins = glass._lattice;
+        for (int k = 0; k < spins.numWords(); k++) {
+            _buffer.putLong(spins.word(k));
+        }
+        finish(_energies ? glass.getEnergy() : 0);
+    }
+
+    @Override
+    public void accept(Lattice glass, long step) {
+        try {
+            write(glass);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Returns the number of states written so far. */
+    public long records() {
+        return _records;
+    }
+
+    /** Flushes my buffer, records the count in the header and closes
+     *  my file. */
+    @Override
+    public void close() throws IOException {
+        flush();
+        ByteBuffer count =
+            ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        count.putLong(0, _records);
+        _channel.write(count, StateFile.RECORDS_OFFSET);
+        _channel.close();
+    }
+
+    /** Makes room in my buffer for one more record. */
+    private void reserve() throws IOException {
+        if (_buffer.remaining() < StateFile.recordSize(_numSpins, _energies)) {
+            flush();
+        }
+    }
+
+    /** Completes the record being written with ENERGY if I record
+     *  energies. */
+    private void finish(double energy) {
+        if (_energies) {
+            _buffer.putDouble(energy);
+        }
+        _records += 1;
+    }
+
+    /** Writes out everything in my buffer. */
+    private void flush() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    /** Bytes buffered before each write. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel _channel;
+    private final ByteBuffer _buffer;
+    private final int _numSpins;
+    /** True iff each record carries an energy. */
+    private final boolean _energies;
+    /** Records written so far. */
+    private long _records;
+}
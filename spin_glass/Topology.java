@@ -0,0 +1,299 @@
+package spin_glass;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** The interaction graph of a lattice: which pairs of spins may be
+ *  coupled.
+ *  Neighbors are computed once, at construction, into flat compressed
+ *  sparse row (CSR) arrays: the neighbors of spin i are
+ *  neighbor(i, 0) ... neighbor(i, degree(i) - 1), in ascending order.
+ *  Edges are undirected, so j is a neighbor of i iff i is one of j, and
+ *  no spin neighbors itself. Whoever walks the graph (sparse Weightings,
+ *  the lattice updates that go through them, the parallel sweeper and
+ *  the cluster samplers) does so through these arrays, with no index
+ *  arithmetic or boundary tests of its own.
+ *  @author Andrew Berger */
+public class Topology {
+
+    /** A new topology on NEIGHBORS.length spins in which spin i is
+     *  coupled to every spin of NEIGHBORS[i]. Listing either direction
+     *  of a pair suffices; duplicates and self couplings are dropped. */
+    Topology(int[][] neighbors) {
+        int[][] csr = csr(neighbors.length, neighbors, true);
+        _rowStart = csr[0];
+        _columns = csr[1];
+        int n = size();
+        int[] colors = new int[n];
+        int[] seen = new int[n + 1];
+        int numColors = 0;
+        for (int i = 0; i < n; i++) {
+            for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                if (_columns[k] < i) {
+                    seen[colors[_columns[k]]] = i + 1;
+                }
+            }
+            int c = 0;
+            while (seen[c] == i + 1) {
+                c += 1;
+            }
+            colors[i] = c;
+            numColors = Math.max(numColors, c + 1);
+        }
+        _colors = colors;
+        _numColors = numColors;
+    }
+
+    /** Returns a ROWS x COLS square grid, in row-major order, whose
+     *  edges wrap around iff PERIODIC. */
+    public static Topology grid(int rows, int cols, boolean periodic) {
+        int[][] neighbors = new int[rows * cols][];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                neighbors[i * cols + j] = forward(periodic, new int[] {i, j},
+                                                  new int[] {rows, cols},
+                                                  new int[][] {{0, 1},
+                                                               {1, 0}});
+            }
+        }
+        return new Topology(neighbors);
+    }
+
+    /** Returns a SIDE x SIDE x SIDE simple cubic lattice, with x varying
+     *  fastest, whose edges wrap around iff PERIODIC. */
+    public static Topology cubic(int side, boolean periodic) {
+        int[][] neighbors = new int[side * side * side][];
+        for (int z = 0; z < side; z++) {
+            for (int y = 0; y < side; y++) {
+                for (int x = 0; x < side; x++) {
+                    neighbors[(z * side + y) * side + x] =
+                        forward(periodic, new int[] {z, y, x},
+                                new int[] {side, side, side},
+                                new int[][] {{0, 0, 1}, {0, 1, 0},
+                                             {1, 0, 0}});
+                }
+            }
+        }
+        return new Topology(neighbors);
+    }
+
+    /** Returns a ROWS x COLS triangular lattice, in row-major order:
+     *  the square grid with one diagonal, from (i, j) to (i + 1, j + 1),
+     *  added across every cell, so that interior spins have six
+     *  neighbors. Edges wrap around iff PERIODIC. */
+    public static Topology triangular(int rows, int cols, boolean periodic) {
+        int[][] neighbors = new int[rows * cols][];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                neighbors[i * cols + j] = forward(periodic, new int[] {i, j},
+                                                  new int[] {rows, cols},
+                                                  new int[][] {{0, 1},
+                                                               {1, 0},
+                                                               {1, 1}});
+            }
+        }
+        return new Topology(neighbors);
+    }
+
+    /** Returns the topology on NUMSPINS spins with the undirected edges
+     *  EDGES, each a pair {i, j}. */
+    public static Topology edges(int numSpins, int[][] edges) {
+        int[] degree = new int[numSpins];
+        for (int[] edge : edges) {
+            checkEdge(numSpins, edge[0], edge[1]);
+            degree[edge[0]] += 1;
+        }
+        int[][] neighbors = new int[numSpins][];
+        for (int i = 0; i < numSpins; i++) {
+            neighbors[i] = new int[degree[i]];
+            degree[i] = 0;
+        }
+        for (int[] edge : edges) {
+            neighbors[edge[0]][degree[edge[0]]++] = edge[1];
+        }
+        return new Topology(neighbors);
+    }
+
+    /** Returns the topology read from the edge list in the file PATH:
+     *  one edge per line as two whitespace separated spin indices, with
+     *  blank lines and lines starting with '#' ignored. The spins are
+     *  numbered from 0 to the largest index named. */
+    public static Topology read(String path) throws IOException {
+        List<int[]> edges = new ArrayList<int[]>();
+        int numSpins = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new StateException("bad edge in " + path + ": "
+                                             + line);
+                }
+                int i;
+                int j;
+                try {
+                    i = Integer.parseInt(fields[0]);
+                    j = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException e) {
+                    throw new StateException("bad edge in " + path + ": "
+                                             + line);
+                }
+                numSpins = Math.max(numSpins, Math.max(i, j) + 1);
+                edges.add(new int[] {i, j});
+            }
+        }
+        return edges(numSpins, edges.toArray(new int[edges.size()][]));
+    }
+
+    /** Returns the number of spins I connect. */
+    public int size() {
+        return _rowStart.length - 1;
+    }
+
+    /** Returns the number of neighbors of spin I. */
+    public int degree(int i) {
+        return _rowStart[i + 1] - _rowStart[i];
+    }
+
+    /** Returns the Pth neighbor, P < degree(I), of spin I. */
+    public int neighbor(int i, int p) {
+        return _columns[_rowStart[i] + p];
+    }
+
+    /** Returns the number of undirected edges I hold. */
+    public int numEdges() {
+        return _columns.length / 2;
+    }
+
+    /** Returns the number of colors of my greedy coloring. */
+    public int numColors() {
+        return _numColors;
+    }
+
+    /** Returns the color of every spin in a greedy coloring, made in
+     *  index order, in which no two neighbors share a color: the
+     *  checkerboard on a grid with even sides. Computed at construction;
+     *  the result is shared and must not be modified. */
+    int[] colors() {
+        return _colors;
+    }
+
+    /** Returns my CSR row offsets: the neighbors of spin i occupy
+     *  [rowStart()[i], rowStart()[i + 1]) of columns(). Shared, not to
+     *  be modified. */
+    int[] rowStart() {
+        return _rowStart;
+    }
+
+    /** Returns my CSR neighbor indices, ascending within a row. Shared,
+     *  not to be modified. */
+    int[] columns() {
+        return _columns;
+    }
+
+    /** Returns CSR arrays {rowStart, columns} for ROWS rows from the
+     *  adjacency NEIGHBORS, each row sorted with duplicates dropped.
+     *  If SYMMETRIC, self couplings are dropped too and every pair is
+     *  mirrored. */
+    static int[][] csr(int rows, int[][] neighbors, boolean symmetric) {
+        int[] degree = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            for (int j : neighbors[i]) {
+                if (!symmetric) {
+                    degree[i] += 1;
+                } else if (i != j) {
+                    checkEdge(rows, i, j);
+                    degree[i] += 1;
+                    degree[j] += 1;
+                }
+            }
+        }
+        int[] rowStart = new int[rows + 1];
+        for (int i = 0; i < rows; i++) {
+            rowStart[i + 1] = rowStart[i] + degree[i];
+        }
+        int[] cols = new int[rowStart[rows]];
+        int[] fill = Arrays.copyOf(rowStart, rows);
+        for (int i = 0; i < rows; i++) {
+            for (int j : neighbors[i]) {
+                if (!symmetric) {
+                    cols[fill[i]++] = j;
+                } else if (i != j) {
+                    cols[fill[i]++] = j;
+                    cols[fill[j]++] = i;
+                }
+            }
+        }
+        /* Sort each row and squeeze out duplicate couplings. */
+        int nnz = 0;
+        int start = 0;
+        for (int i = 0; i < rows; i++) {
+            int end = rowStart[i + 1];
+            Arrays.sort(cols, start, end);
+            rowStart[i] = nnz;
+            for (int k = start; k < end; k++) {
+                if (k == start || cols[k] != cols[k - 1]) {
+                    cols[nnz++] = cols[k];
+                }
+            }
+            start = end;
+        }
+        rowStart[rows] = nnz;
+        return new int[][] {rowStart, Arrays.copyOf(cols, nnz)};
+    }
+
+    /** Returns the neighbors of the site at coordinates AT, in a box
+     *  of extents SIDES, one step along each of the OFFSETS. Offsets
+     *  leaving the box wrap around iff PERIODIC and are dropped
+     *  otherwise. The box is numbered with the last coordinate varying
+     *  fastest. Only forward offsets need be given: the backward edges
+     *  are the forward edges of the other end. */
+    private static int[] forward(boolean periodic, int[] at, int[] sides,
+                                 int[][] offsets) {
+        int[] result = new int[offsets.length];
+        int count = 0;
+        for (int[] offset : offsets) {
+            int index = 0;
+            boolean inside = true;
+            for (int d = 0; d < at.length; d++) {
+                int c = at[d] + offset[d];
+                if (c >= sides[d]) {
+                    inside &= periodic;
+                    c -= sides[d];
+                }
+                index = index * sides[d] + c;
+            }
+            if (inside) {
+                result[count++] = index;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /** Throws a StateException unless I and J both index one of
+     *  NUMSPINS spins. */
+    private static void checkEdge(int numSpins, int i, int j) {
+        if (i < 0 || j < 0 || i >= numSpins || j >= numSpins) {
+            throw new StateException("edge (" + i + ", " + j
+                                     + ") outside " + numSpins + " spins");
+        }
+    }
+
+    /** CSR row offsets: the neighbors of spin i occupy
+     *  [_rowStart[i], _rowStart[i + 1]) of _columns. */
+    private final int[] _rowStart;
+    /** CSR neighbor indices, ascending within each row. */
+    private final int[] _columns;
+    /** Greedy coloring, computed at construction so that it is safely
+     *  published to every thread with me. */
+    private final int[] _colors;
+    private final int _numColors;
+}
@@ -1,6 +1,11 @@
 package spin_glass;
 
+import java.util.Arrays;
+
 /** The weighting between two possibly distinct Lattices
+ *  Weights are held either as a dense matrix, or, for locally connected
+ *  glasses, in compressed sparse row (CSR) form where only the couplings
+ *  named at construction are stored.
  *  @author Andrew Berger */
 public class Weighting {
 
@@ -20,43 +25,364 @@ public class Weighting {
         _isInteracting = true;
     }
 
+    /** A new sparse weighting between two layers of an RBM.
+     *  NEIGHBORS[i] lists the spins of TO coupled to spin i of FROM. */
+    Weighting(Lattice from, Lattice to, int[][] neighbors) {
+        _from = from;
+        _to = to;
+        _isInteracting = false;
+        buildRows(from.latticeSize(), neighbors);
+    }
+
+    /** A new sparse weighting for a hopfield network.
+     *  NEIGHBORS[i] lists the spins coupled to spin i. Couplings are
+     *  symmetric, so listing either direction of a pair suffices. */
+    Weighting(InteractingLattice self, int[][] neighbors) {
+        this(self, new Topology(neighbors));
+    }
+
+    /** A new sparse weighting for a hopfield network, coupled along the
+     *  edges of TOPOLOGY, whose neighbor arrays I share. */
+    Weighting(InteractingLattice self, Topology topology) {
+        if (topology.size() != self.latticeSize()) {
+            throw new StateException("topology of " + topology.size()
+                                     + " spins for a lattice of "
+                                     + self.latticeSize());
+        }
+        _from = self;
+        _to = self;
+        _isInteracting = true;
+        _topology = topology;
+        _rowStart = topology.rowStart();
+        _columns = topology.columns();
+        _values = new double[_columns.length];
+    }
+
     /** Set weight (I,J) to W.
-     *  If isInteracting also sets (J, I) to W.*/
+     *  If isInteracting also sets (J, I) to W.
+     *  If I am sparse, (I, J) must be one of my couplings. */
     public void set(int i, int j, int w) {
         if (i != j || !_isInteracting) {
-            _weights[i][j] = w;
-            if (_isInteracting) {
-                _weights[j][i] = w;
+            if (_weights == null) {
+                _values[slot(i, j)] = w;
+                if (_isInteracting) {
+                    _values[slot(j, i)] = w;
+                }
+            } else {
+                _weights[i][j] = w;
+                if (_isInteracting) {
+                    _weights[j][i] = w;
+                }
             }
-        } else {
+        } else if (_weights != null) {
             /* Self-interaction disallowed in hopfield networks*/
             _weights[i][j] = 0;
         }
+        _version++;
     }
 
     /** Returns the weight at (I,J).*/
     public double get(int i, int j) {
-        return _weights[i][j];
+        if (_weights != null) {
+            return _weights[i][j];
+        }
+        int k = find(i, j);
+        return k < 0 ? 0 : _values[k];
+    }
+
+    /** Returns the dot product of row I of the weights with SPINS. */
+    double rowDot(int i, PackedSpins spins) {
+        double sum = 0;
+        if (_weights == null) {
+            for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                sum += _values[k] * spins.get(_columns[k]);
+            }
+            return sum;
+        }
+        double[] row = _weights[i];
+        for (int j = 0; j < row.length; j++) {
+            sum += row[j] * spins.get(j);
+        }
+        return sum;
+    }
+
+    /** Returns the spins of the to lattice coupled to spin I of the from
+     *  lattice: every stored coupling if I am sparse, otherwise those
+     *  with a non-zero weight. */
+    int[] neighbors(int i) {
+        if (_weights == null) {
+            return Arrays.copyOfRange(_columns, _rowStart[i], _rowStart[i + 1]);
+        }
+        int count = 0;
+        for (double w : _weights[i]) {
+            if (w != 0) {
+                count += 1;
+            }
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int j = 0; j < _weights[i].length; j++) {
+            if (_weights[i][j] != 0) {
+                result[count++] = j;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of spins of the to lattice possibly coupled to
+     *  spin I of the from lattice: its stored couplings if I am sparse,
+     *  otherwise every spin. Unlike neighbors(), allocates nothing. */
+    int degree(int i) {
+        return _weights == null ? _rowStart[i + 1] - _rowStart[i]
+            : _weights[i].length;
+    }
+
+    /** Returns the Pth spin, P < degree(I), possibly coupled to spin I. */
+    int neighbor(int i, int p) {
+        return _weights == null ? _columns[_rowStart[i] + p] : p;
+    }
+
+    /** Returns the topology my couplings lie on if I am a sparse
+     *  weighting for a hopfield network, otherwise null. */
+    public Topology topology() {
+        return _topology;
+    }
+
+    /** Returns true iff I only store the couplings named at construction. */
+    public boolean isSparse() {
+        return _weights == null;
+    }
+
+    /** Adds ALPHA times row I of the weights to ACC.
+     *  Row I holds the couplings from spin I of the from lattice to every
+     *  spin of the to lattice. If I am sparse, only non-zero couplings
+     *  are visited. */
+    void addRow(int i, double alpha, double[] acc) {
+        if (_weights == null) {
+            for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                acc[_columns[k]] += alpha * _values[k];
+            }
+            return;
+        }
+        double[] row = _weights[i];
+        for (int j = 0; j < row.length; j++) {
+            acc[j] += alpha * row[j];
+        }
+    }
+
+    /** Adds W^T V to ACC, where V holds a value per spin of the from
+     *  lattice and ACC one per spin of the to lattice:
+     *  ACC[j] += sum_i V[i] W_ij. */
+    void multiplyTransposed(double[] v, double[] acc) {
+        if (_weights == null) {
+            for (int i = 0; i < v.length; i++) {
+                addRow(i, v[i], acc);
+            }
+        } else {
+            LayerKernel.multiplyTransposed(_weights, v, acc);
+        }
+    }
+
+    /** Adds W H to ACC, where H holds a value per spin of the to lattice
+     *  and ACC one per spin of the from lattice:
+     *  ACC[i] += sum_j W_ij H[j]. */
+    void multiply(double[] h, double[] acc) {
+        if (_weights == null) {
+            for (int i = 0; i < acc.length; i++) {
+                double sum = 0;
+                for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                    sum += _values[k] * h[_columns[k]];
+                }
+                acc[i] += sum;
+            }
+        } else {
+            LayerKernel.multiply(_weights, h, acc);
+        }
+    }
+
+    /** Adds W^T V to ACC for CHAINS states at once, each array holding
+     *  one state after another. */
+    void multiplyTransposed(double[] v, int chains, double[] acc) {
+        if (_weights != null) {
+            LayerKernel.multiplyTransposed(_weights, v, chains, acc);
+            return;
+        }
+        int rows = _rowStart.length - 1;
+        int cols = acc.length / chains;
+        for (int c = 0; c < chains; c++) {
+            for (int i = 0; i < rows; i++) {
+                double vi = v[c * rows + i];
+                for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                    acc[c * cols + _columns[k]] += vi * _values[k];
+                }
+            }
+        }
+    }
+
+    /** Adds W H to ACC for CHAINS states at once, each array holding
+     *  one state after another. */
+    void multiply(double[] h, int chains, double[] acc) {
+        if (_weights != null) {
+            LayerKernel.multiply(_weights, h, chains, acc);
+            return;
+        }
+        int rows = _rowStart.length - 1;
+        int cols = h.length / chains;
+        for (int c = 0; c < chains; c++) {
+            for (int i = 0; i < rows; i++) {
+                double sum = 0;
+                for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                    sum += _values[k] * h[c * cols + _columns[k]];
+                }
+                acc[c * rows + i] += sum;
+            }
+        }
+    }
+
+    /** Adds the outer product of U and V to ACC, a matrix of my
+     *  dimensions, at every coupling: ACC[i][j] += U[i] * V[j].
+     *  If I am sparse, only my stored couplings are visited. */
+    void addOuter(double[] u, double[] v, double[][] acc) {
+        for (int i = 0; i < u.length; i++) {
+            double ui = u[i];
+            double[] row = acc[i];
+            if (_weights == null) {
+                for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                    row[_columns[k]] += ui * v[_columns[k]];
+                }
+            } else {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] += ui * v[j];
+                }
+            }
+        }
+    }
+
+    /** Returns my rows if I am dense, otherwise null. These are live:
+     *  whoever writes to them must then call touch(). */
+    double[][] denseRows() {
+        return _weights;
+    }
+
+    /** Returns my stored coupling values in CSR order if I am sparse,
+     *  otherwise null. Live, as denseRows() is. */
+    double[] sparseValues() {
+        return _values;
+    }
+
+    /** Records that my weights have been changed in place. */
+    void touch() {
+        _version++;
+    }
+
+    /** Returns a count that changes whenever any weight changes. */
+    long version() {
+        return _version;
+    }
+
+    /** Returns the largest magnitude sum_i |W_ij| over the spins j of
+     *  the to lattice, which bounds |h_j + theta_j|, if every weight is
+     *  an integer, or -1 if any is not. Cached until the weights change. */
+    double integralFieldBound() {
+        if (_boundVersion != _version) {
+            double[] sums = new double[_to.latticeSize()];
+            boolean integral = true;
+            if (_weights == null) {
+                for (int k = 0; k < _values.length; k++) {
+                    integral &= _values[k] == Math.rint(_values[k]);
+                    sums[_columns[k]] += Math.abs(_values[k]);
+                }
+            } else {
+                for (double[] row : _weights) {
+                    for (int j = 0; j < row.length; j++) {
+                        integral &= row[j] == Math.rint(row[j]);
+                        sums[j] += Math.abs(row[j]);
+                    }
+                }
+            }
+            double bound = 0;
+            for (double sum : sums) {
+                bound = Math.max(bound, sum);
+            }
+            _fieldBound = integral ? bound : -1;
+            _boundVersion = _version;
+        }
+        return _fieldBound;
     }
 
     /** GRADIENT is the (wrapped) vector given by eq 16 in the MPF paper
      *  EPS the gradient step.
      *  GRADIENT of same dimensions of _weights
-     *  Updates the weighting to a presumably better value. */
+     *  Updates the weighting to a presumably better value.
+     *  If I am sparse, only my couplings are updated. */
     public void gradientDescent(double[][] gradient, double eps) {
+        if (_weights == null) {
+            for (int i = 0; i < _rowStart.length - 1; i++) {
+                for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                    _values[k] -= eps * gradient[i][_columns[k]];
+                }
+            }
+            _version++;
+            return;
+        }
         for (int i = 0; i < _weights.length; i++) {
             for (int j = 0; j < _weights[0].length; j++) {
                 _weights[i][j] -= eps * gradient[i][j];
             }
         }
+        _version++;
+    }
+
+    /** Fills my CSR arrays for ROWS rows from the adjacency NEIGHBORS,
+     *  dropping duplicates. */
+    private void buildRows(int rows, int[][] neighbors) {
+        int[][] csr = Topology.csr(rows, neighbors, false);
+        _rowStart = csr[0];
+        _columns = csr[1];
+        _values = new double[_columns.length];
+    }
+
+    /** Returns the index into _values of coupling (I, J), or a negative
+     *  number if I do not hold that coupling. */
+    private int find(int i, int j) {
+        int k = Arrays.binarySearch(_columns, _rowStart[i],
+                                    _rowStart[i + 1], j);
+        return k < 0 ? -1 : k;
+    }
+
+    /** Returns the index into _values of coupling (I, J).
+     *  Throws a StateException if I do not hold that coupling. */
+    private int slot(int i, int j) {
+        int k = find(i, j);
+        if (k < 0) {
+            throw new StateException("no coupling between " + i
+                                     + " and " + j);
+        }
+        return k;
     }
 
     /** Matrix holding weights.
-     *  Square and symmetric and (i, i) = 0 if isInteracting. */
+     *  Square and symmetric and (i, i) = 0 if isInteracting.
+     *  Null if I am sparse. */
     private double[][] _weights;
+    /** Interaction graph of a sparse hopfield network, whose arrays
+     *  are _rowStart and _columns. Null otherwise. */
+    private Topology _topology;
+    /** CSR row offsets: row i occupies [_rowStart[i], _rowStart[i + 1])
+     *  of _columns and _values. Null if I am dense. */
+    private int[] _rowStart;
+    /** CSR column index of each stored coupling, sorted within a row. */
+    private int[] _columns;
+    /** CSR value of each stored coupling. */
+    private double[] _values;
     /** True iff I hold weights for a hopfield network. */
     private boolean _isInteracting;
+    /** Incremented on every change to the weights. */
+    private long _version;
+    /** Cached integralFieldBound(), valid iff _boundVersion == _version. */
+    private double _fieldBound;
+    private long _boundVersion = -1;
     private Lattice _from;
     private Lattice _to;
 
-}
\ No newline at end of file
+}